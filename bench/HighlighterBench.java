@@ -0,0 +1,94 @@
+package herrick.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// JMH benchmarks for the highlighting pipeline.  Run with `ant bench`
+// (see build.xml); results go to bench_output.json.
+//
+// Every benchmark runs over the same generated documents, from 200
+// bytes to 10 MB, and the same query shapes:
+//	 -single:   one term
+//	 -multi:    several terms, not in order (exact match fails)
+//	 -phrase:   a quoted phrase that's in the document
+//	 -fallback: a quoted phrase that isn't, so terms are searched
+//	 -nomatch:  nothing matches, first snippet is returned
+//
+// The three benchmarks peel off layers of the pipeline:
+//	 -highlightDoc:  highlight_doc(String, String), everything
+//	 -compiled:      query compiled once, document prepared per call
+//	 -prepared:      both prepared, just searching and snippeting
+//
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HighlighterBench {
+
+	protected static final String[] VOCAB = {"the", "toast", "toaster",
+		"jam,", "automobile", "autopilot", "and", "of", "Quick", "brown",
+		"fox.", "jumps", "over", "lazy", "dog", "--", "(maybe)", "it's",
+		"document", "search", "result", "snippet", "highlight", "query"};
+
+	protected static final Map<String, String> QUERIES = 
+		new HashMap<String, String>();
+	static {
+		QUERIES.put("single", "toast");
+		QUERIES.put("multi", "dog search fox automobile jam highlight");
+		QUERIES.put("phrase", "\"lazy dog\" snippet");
+		QUERIES.put("fallback", "\"dog lazy fox\" jam");
+		QUERIES.put("nomatch", "excelsior zeppelin");
+	}
+
+	@Param({"200", "10000", "1000000", "10000000"})
+	public int docSize;
+
+	@Param({"single", "multi", "phrase", "fallback", "nomatch"})
+	public String queryShape;
+
+	protected Highlighter h;
+	protected String doc, query;
+	protected CompiledQuery compiled;
+	protected PreparedDocument prepared;
+
+	@Setup
+	public void setup(){
+		h = new Highlighter();
+		doc = document(docSize, 42);
+		query = QUERIES.get(queryShape);
+		compiled = h.compile(query);
+		prepared = h.prepare(doc);
+	}
+
+	// random words from VOCAB (and "lazy dog" every so often) 
+	//	  until we have 'size' chars
+	protected static String document(int size, long seed){
+		Random r = new Random(seed);
+		StringBuilder sb = new StringBuilder(size + 32);
+		while(sb.length() < size){
+			if(r.nextInt(50) == 0) sb.append("lazy dog");
+			else sb.append(VOCAB[r.nextInt(VOCAB.length)]);
+			sb.append(r.nextInt(12) == 0 ? '\n' : ' ');
+		}
+		sb.setLength(size);
+		return sb.toString();
+	}
+
+	@Benchmark
+	public String highlightDoc(){
+		return h.highlight_doc(doc, query);
+	}
+
+	@Benchmark
+	public String compiled(){
+		return h.highlight_doc(doc, compiled);
+	}
+
+	@Benchmark
+	public String prepared(){
+		return h.highlight_doc(prepared, compiled);
+	}
+}
@@ -0,0 +1,221 @@
+package herrick.test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Aho-Corasick automaton over a fixed set of needles, so every needle
+// in a query can be found in a single left-to-right pass of the
+// haystack instead of one Boyer-Moore pass per needle.
+//
+// The goto/fail functions are flattened into a full DFA (delta[]), so
+// the scan is one table lookup per haystack char.  To keep the table
+// small, chars are first mapped to a 'class': each char that appears
+// in some needle gets its own class, everything else shares class 0,
+// which can never continue a match.
+//
+// Like BoyerMoore, every occurrence is reported, including
+// overlapping ones and ones in the middle of a word.
+// Instances are immutable once built.
+//
+public class AhoCorasick {
+
+	// Callback for scan(): needle 'pattern' occurs at haystack[start..]
+	public interface Hits {
+		void hit(int pattern, int start);
+	}
+
+	protected final int alphaSize;
+	protected final int classes;
+	protected final int[] charClass; // char -> column in delta
+	protected final int[] delta;     // [state*classes + class] -> state
+	protected final int[] patternAt; // needle ending exactly here, or -1
+	protected final int[] dictLink;  // next suffix state with a needle, or -1
+	protected final int[] lengths;   // length of each needle
+
+	// Biggest delta[] we'll build (about the biggest int[] a JVM
+	//	  allows); more needles than that fit into need splitting up.
+	public static final long MAX_CELLS = Integer.MAX_VALUE - 8;
+
+	// Needles containing chars >= alphaSize can never match,
+	//	  same as chars outside the alphabet in the haystack.
+	//	  Throws IllegalArgumentException if delta[] would need more
+	//	  than MAX_CELLS entries (see cells()).
+	//
+	public AhoCorasick(String[] needles, int alphaSize){
+		this.alphaSize = alphaSize;
+		charClass = new int[alphaSize];
+		lengths = new int[needles.length];
+
+		// number the chars we actually care about
+		long chars = 1;
+		int nClasses = 1;
+		for(String n : needles){
+			chars += n.length();
+			for(int i = 0; i < n.length(); i++){
+				char c = n.charAt(i);
+				if(c < alphaSize && charClass[c]==0)
+					charClass[c] = nClasses++;
+			}
+		}
+		classes = nClasses;
+		if(chars > MAX_CELLS)
+			throw new IllegalArgumentException("too many needle chars: " + chars);
+		int total = (int)chars;
+
+		// build the trie with a list of edges per state first (child,
+		//	  then its siblings), so the table can be sized to the
+		//	  states there really are
+		int[] child = new int[total], sibling = new int[total], label = new int[total];
+		Arrays.fill(child, -1);
+		int[] pat = new int[total];
+		Arrays.fill(pat, -1);
+		int states = 1;
+		for(int p = 0; p < needles.length; p++){
+			String n = needles[p];
+			lengths[p] = n.length();
+			if(n.length()==0) continue;
+			int s = 0;
+			for(int i = 0; i < n.length(); i++){
+				char c = n.charAt(i);
+				if(c >= alphaSize){ s = -1; break; }
+				int cls = charClass[c], t = child[s];
+				while(t >= 0 && label[t] != cls) t = sibling[t];
+				if(t < 0){
+					t = states++;
+					label[t] = cls;
+					sibling[t] = child[s];
+					child[s] = t;
+				}
+				s = t;
+			}
+			if(s > 0 && pat[s] < 0) pat[s] = p;
+		}
+
+		long cells = (long)states*classes;
+		if(cells > MAX_CELLS)
+			throw new IllegalArgumentException("automaton too big: " + states 
+					+ " states x " + classes + " chars");
+		int[] go = new int[(int)cells];// -1 meaning 'no edge yet'
+		Arrays.fill(go, -1);
+		for(int s = 0; s < states; s++)
+			for(int t = child[s]; t >= 0; t = sibling[t])
+				go[s*classes + label[t]] = t;
+		child = sibling = label = null;
+
+		// breadth first, fill in fail transitions and dictionary links
+		int[] fail = new int[states];
+		int[] dict = new int[states];
+		dict[0] = -1;
+		int[] queue = new int[states];
+		int qHead = 0, qTail = 0;
+		for(int c = 0; c < classes; c++){
+			int t = go[c];
+			if(t < 0) go[c] = 0;
+			else{
+				fail[t] = 0;
+				dict[t] = -1;
+				queue[qTail++] = t;
+			}
+		}
+		while(qHead < qTail){
+			int s = queue[qHead++];
+			for(int c = 0; c < classes; c++){
+				int k = s*classes + c;
+				int f = go[fail[s]*classes + c];
+				if(go[k] < 0)
+					go[k] = f;
+				else{
+					int t = go[k];
+					fail[t] = f;
+					dict[t] = pat[f] >= 0 ? f : dict[f];
+					queue[qTail++] = t;
+				}
+			}
+		}
+
+		delta = go;
+		patternAt = Arrays.copyOf(pat, states);
+		dictLink = dict;
+	}
+
+	// Streaming form of scan(): the state after reading c in 'state'.
+	//	  Start from state 0.
+	//
+	public int next(int state, char c){
+		return delta[state*classes + (c < alphaSize ? charClass[c] : 0)];
+	}
+
+	// entries in delta[], 4 bytes each: states x distinct needle chars
+	public int cells(){
+		return delta.length;
+	}
+
+	// length of the longest needle
+	public int maxLength(){
+		int max = 0;
+		for(int l : lengths) max = Math.max(max, l);
+		return max;
+	}
+
+	// Same as scan(), over bytes, for an automaton whose needles are
+	//	  bytes too (chars 0-255, alphaSize 256; see CompiledQuery.utf8())
+	//
+	public void scan(byte[] haystackB, int haystackLen, Hits out){
+		scan(haystackB, 0, haystackLen, 0, out);
+	}
+
+	public int scan(byte[] haystackB, int from, int to, int state, Hits out){
+		int s = state;
+		for(int i = from; i < to; i++){
+			s = delta[s*classes + charClass[haystackB[i] & 0xff]];
+			int m = patternAt[s] >= 0 ? s : dictLink[s];
+			while(m >= 0){
+				int p = patternAt[m];
+				out.hit(p, i - lengths[p] + 1);
+				m = dictLink[m];
+			}
+		}
+		return s;
+	}
+
+	// same, for bytes that aren't on the heap (see DocumentStore)
+	public int scan(ByteBuffer haystackM, int from, int to, int state, Hits out){
+		int s = state;
+		for(int i = from; i < to; i++){
+			s = delta[s*classes + charClass[haystackM.get(i) & 0xff]];
+			int m = patternAt[s] >= 0 ? s : dictLink[s];
+			while(m >= 0){
+				int p = patternAt[m];
+				out.hit(p, i - lengths[p] + 1);
+				m = dictLink[m];
+			}
+		}
+		return s;
+	}
+
+	// One pass over haystack[0..haystackLen), reporting every needle
+	//	  occurrence to 'out' in order of where it ends.
+	//
+	public void scan(char[] haystackA, int haystackLen, Hits out){
+		scan(haystackA, 0, haystackLen, 0, out);
+	}
+
+	// Same, over haystack[from..to) only, starting in 'state' (0 for
+	//	  the start of the text).  Returns the state at the end, so a
+	//	  text can be scanned a piece at a time: each occurrence is
+	//	  reported by the piece it ends in.
+	//
+	public int scan(char[] haystackA, int from, int to, int state, Hits out){
+		int s = state;
+		for(int i = from; i < to; i++){
+			s = next(s, haystackA[i]);
+			int m = patternAt[s] >= 0 ? s : dictLink[s];
+			while(m >= 0){
+				int p = patternAt[m];
+				out.hit(p, i - lengths[p] + 1);
+				m = dictLink[m];
+			}
+		}
+		return s;
+	}
+}
@@ -0,0 +1,392 @@
+package herrick.test;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Batch mode for Highlighter.main(): streams (doc, query) records
+// from a file or stdin, highlights them on a pool of threads, and
+// writes the snippets out IN INPUT ORDER, one line per record.
+//
+//	 java herrick.test.Highlighter [options] [in [out]]
+//	   --tsv          TSV instead of JSONL
+//	   --threads N    worker threads (default: one per core)
+//	   --virtual      virtual threads, if the JVM has them (21+)
+//	   --snip N       SNIP_SIZE
+//	   --tags S E     START_TAG, END_TAG
+//	   --early-stop   see Highlighter.setEarlyStop()
+//	   --max-scan N   chars searched per document, setScanBudget()
+//	   --max-millis N time per document, setTimeBudget()
+//
+// in/out default to stdin/stdout, or give "-".
+//
+// JSONL: one object per line, {"id": ..., "doc": "...", "query":
+// "..."} (id optional, passed through), out comes {"id": ...,
+// "snippet": "..."} (plus "truncated": true if a budget cut the
+// search short).  A record that can't be read comes out as
+// {"line": N, "error": "..."} in its place, so line numbers still
+// line up.
+//
+// TSV: "query<TAB>doc" or "id<TAB>query<TAB>doc", with \t, \n, \r
+// and \\ escaped; out comes "[id<TAB>]snippet", escaped the same way.
+// A record that can't be read comes out as an empty snippet (after
+// its id, if it has three fields or more) and a note on stderr.
+//
+// Memory is bounded: at most 'window' records (4 per thread) are read
+// ahead of the one being written, and the reader blocks until the
+// writer catches up.  A throughput summary goes to stderr at the end.
+//
+public class BatchRunner {
+
+	protected final Highlighter h;
+	protected boolean tsv, virtual;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	public BatchRunner(Highlighter h){
+		this.h = h;
+	}
+
+	public static void main(Highlighter h, String[] args) throws IOException {
+		BatchRunner b = new BatchRunner(h);
+		ArrayList<String> files = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++){
+			String a = args[i];
+			if(a.equals("--tsv")) b.tsv = true;
+			else if(a.equals("--jsonl")) b.tsv = false;
+			else if(a.equals("--virtual")) b.virtual = true;
+			else if(a.equals("--threads")) b.threads = Integer.parseInt(args[++i]);
+			else if(a.equals("--snip")) h.setSnip(Integer.parseInt(args[++i]));
+			else if(a.equals("--tags")){
+				h.setTags(args[i+1], args[i+2]);
+				i += 2;
+			}
+			else if(a.equals("--early-stop")) h.setEarlyStop(true);
+			else if(a.equals("--max-scan")) h.setScanBudget(Integer.parseInt(args[++i]));
+			else if(a.equals("--max-millis"))
+				h.setTimeBudget(Long.parseLong(args[++i])*1000000L);
+			else if(a.startsWith("--") && a.length() > 2)
+				throw new IllegalArgumentException("unknown option " + a);
+			else files.add(a);
+		}
+		String in = files.size() > 0 ? files.get(0) : "-";
+		String out = files.size() > 1 ? files.get(1) : "-";
+
+		Reader r = in.equals("-") ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+			: new InputStreamReader(new FileInputStream(in), StandardCharsets.UTF_8);
+		Writer w = out.equals("-") ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+			: new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8);
+		long t = System.nanoTime();
+		long n;
+		try(BufferedReader br = new BufferedReader(r, 1 << 16);
+				BufferedWriter bw = new BufferedWriter(w, 1 << 16)){
+			n = b.run(br, bw);
+		}
+		double secs = (System.nanoTime() - t) / 1e9;
+		System.err.printf("%d records in %.2f s (%.0f records/sec)%n",
+				n, secs, n / Math.max(secs, 1e-9));
+	}
+
+	// Highlights every line of in to out, returning how many
+	//	  records there were.
+	//
+	public long run(final BufferedReader in, Writer out) throws IOException {
+		final ExecutorService pool = newPool();
+		final BlockingQueue<Future<String>> window =
+			new ArrayBlockingQueue<Future<String>>(4*threads);
+		final Future<String> EOF = new FutureTask<String>(new Callable<String>(){
+			public String call(){ return null; }
+		});
+		final IOException[] readError = new IOException[1];
+
+		// reads and submits, blocking whenever the window is full
+		Thread reader = new Thread(new Runnable(){
+			public void run(){
+				try{
+					String line;
+					long n = 0;
+					while((line = in.readLine()) != null){
+						final String l = line;
+						final long no = ++n;
+						window.put(pool.submit(new Callable<String>(){
+							public String call(){
+								return record(l, no);
+							}
+						}));
+					}
+				}catch(IOException e){
+					readError[0] = e;
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}catch(RejectedExecutionException e){// the writer gave up
+				}finally{
+					try{
+						window.put(EOF);
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}, "batch-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		// writes in submission order
+		long n = 0;
+		try{
+			for(Future<String> f = window.take(); f != EOF; f = window.take()){
+				out.write(f.get());
+				out.write('\n');
+				n++;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}catch(ExecutionException e){// record() catches everything it can
+			throw new IOException(e.getCause());
+		}finally{// if out failed, the reader may be stuck on a full window
+			reader.interrupt();
+			pool.shutdownNow();
+		}
+		if(readError[0] != null) throw readError[0];
+		out.flush();
+		return n;
+	}
+
+	protected ExecutorService newPool(){
+		if(virtual){
+			try{// JDK 21+
+				return (ExecutorService)Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}catch(Exception e){
+				System.err.println("no virtual threads, using " + threads +
+						" platform threads");
+			}
+		}
+		return Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			int n;
+			public synchronized Thread newThread(Runnable r){
+				Thread t = new Thread(r, "batch-" + n++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// Scratches not in use.  Each record takes one for as long as it
+	//	  runs, so there are never more than records in flight (the
+	//	  window, at most), however many threads there are: a
+	//	  ThreadLocal would give every virtual thread, so every
+	//	  record, a new one.
+	protected final ConcurrentLinkedQueue<Scratch> scratches =
+		new ConcurrentLinkedQueue<Scratch>();
+
+	// one line in, one line out
+	protected String record(String line, long no){
+		Scratch s = scratches.poll();
+		if(s == null) s = new Scratch();
+		try{
+			return tsv ? tsvRecord(line, s) : jsonRecord(line, s);
+		}catch(RuntimeException e){
+			String msg = e.getMessage()==null ? e.toString() : e.getMessage();
+			if(tsv){// an empty snippet, keeping the id if there's one
+				System.err.println("line " + no + ": " + msg);
+				int tab = line.indexOf('\t');
+				return tab >= 0 && line.indexOf('\t', tab+1) >= 0 
+					? line.substring(0, tab+1) : "";
+			}
+			return "{\"line\":" + no + ",\"error\":" + quote(msg) + "}";
+		}finally{
+			scratches.offer(s);
+		}
+	}
+
+	protected String highlight(String doc, String query, Scratch s){
+		String snippet = h.highlight_doc(doc, h.compile(query), s);
+		return snippet == null ? "" : snippet;
+	}
+
+	protected String jsonRecord(String line, Scratch s){
+		Map<String, Object> rec = parseObject(line);
+		Object doc = rec.get("doc"), query = rec.get("query");
+		if(!(doc instanceof String) && doc != null)
+			throw new IllegalArgumentException("\"doc\" isn't a string");
+		if(!(query instanceof String) && query != null)
+			throw new IllegalArgumentException("\"query\" isn't a string");
+		StringBuilder sb = new StringBuilder("{");
+		if(rec.containsKey("id"))
+			sb.append("\"id\":").append(json(rec.get("id"))).append(',');
+		sb.append("\"snippet\":")
+			.append(quote(highlight((String)doc, (String)query, s)));
+		if(s.truncated()) sb.append(",\"truncated\":true");
+		return sb.append('}').toString();
+	}
+
+	protected String tsvRecord(String line, Scratch s){
+		String[] f = line.split("\t", -1);
+		if(f.length < 2 || f.length > 3)
+			throw new IllegalArgumentException("expected 2 or 3 fields, got " + f.length);
+		String snippet = unescapeTsv(f[f.length-1]) == null ? ""
+			: highlight(unescapeTsv(f[f.length-1]), unescapeTsv(f[f.length-2]), s);
+		return f.length == 3 ? f[0] + "\t" + escapeTsv(snippet) : escapeTsv(snippet);
+	}
+
+	// TSV HELPERS
+
+	protected static String escapeTsv(String s){
+		StringBuilder sb = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c == '\t') sb.append("\\t");
+			else if(c == '\n') sb.append("\\n");
+			else if(c == '\r') sb.append("\\r");
+			else if(c == '\\') sb.append("\\\\");
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	protected static String unescapeTsv(String s){
+		if(s.indexOf('\\') < 0) return s;
+		StringBuilder sb = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c != '\\' || i+1 == s.length()){
+				sb.append(c);
+				continue;
+			}
+			c = s.charAt(++i);
+			sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+		}
+		return sb.toString();
+	}
+
+	// JSON HELPERS
+	//		 Just enough JSON for one flat object per line: string,
+	//		 number, true/false/null values; nested values are skipped.
+	//
+
+	protected static Map<String, Object> parseObject(String s){
+		int[] p = {0};
+		skipSpace(s, p);
+		expect(s, p, '{');
+		LinkedHashMap<String, Object> rtn = new LinkedHashMap<String, Object>();
+		skipSpace(s, p);
+		if(peek(s, p) == '}'){
+			p[0]++;
+			return rtn;
+		}
+		while(true){
+			skipSpace(s, p);
+			String key = parseString(s, p);
+			skipSpace(s, p);
+			expect(s, p, ':');
+			skipSpace(s, p);
+			rtn.put(key, parseValue(s, p));
+			skipSpace(s, p);
+			char c = peek(s, p);
+			p[0]++;
+			if(c == '}') return rtn;
+			if(c != ',') throw new IllegalArgumentException("expected ',' or '}' at " + (p[0]-1));
+		}
+	}
+
+	private static Object parseValue(String s, int[] p){
+		char c = peek(s, p);
+		if(c == '"') return parseString(s, p);
+		if(c == '{' || c == '['){// skip nested values
+			int depth = 0;
+			do{
+				c = peek(s, p);
+				if(c == '"'){ parseString(s, p); continue; }
+				if(c == '{' || c == '[') depth++;
+				if(c == '}' || c == ']') depth--;
+				p[0]++;
+			}while(depth > 0);
+			return null;
+		}
+		int start = p[0];
+		while(p[0] < s.length() && ",}] \t\r\n".indexOf(s.charAt(p[0])) < 0) p[0]++;
+		String v = s.substring(start, p[0]);
+		if(v.equals("null")) return null;
+		if(v.equals("true")) return Boolean.TRUE;
+		if(v.equals("false")) return Boolean.FALSE;
+		try{
+			return new java.math.BigDecimal(v);
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("bad value '" + v + "' at " + start);
+		}
+	}
+
+	private static String parseString(String s, int[] p){
+		expect(s, p, '"');
+		StringBuilder sb = new StringBuilder();
+		while(true){
+			char c = peek(s, p);
+			p[0]++;
+			if(c == '"') return sb.toString();
+			if(c != '\\'){
+				sb.append(c);
+				continue;
+			}
+			c = peek(s, p);
+			p[0]++;
+			switch(c){
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if(p[0]+4 > s.length())
+						throw new IllegalArgumentException("bad \\u escape at " + p[0]);
+					sb.append((char)Integer.parseInt(s.substring(p[0], p[0]+4), 16));
+					p[0] += 4;
+					break;
+				default: sb.append(c);// \" \\ \/
+			}
+		}
+	}
+
+	private static char peek(String s, int[] p){
+		if(p[0] >= s.length())
+			throw new IllegalArgumentException("unexpected end of line");
+		return s.charAt(p[0]);
+	}
+
+	private static void expect(String s, int[] p, char c){
+		if(peek(s, p) != c)
+			throw new IllegalArgumentException("expected '" + c + "' at " + p[0]);
+		p[0]++;
+	}
+
+	private static void skipSpace(String s, int[] p){
+		while(p[0] < s.length() && Tokenizer.isSpace(s.charAt(p[0]))) p[0]++;
+	}
+
+	// a parsed value, back as JSON
+	protected static String json(Object v){
+		if(v == null) return "null";
+		if(v instanceof String) return quote((String)v);
+		return v.toString();
+	}
+
+	protected static String quote(String s){
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			switch(c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if(c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+					else sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,124 @@
+package herrick.test;
+
+// A single search term (or phrase) with its Boyer-Moore skip tables
+// already built.  The tables only depend on the needle, so they are
+// computed once here and then reused against every haystack.
+//
+// Chars outside the alphabet are fine in the haystack (they just
+// never match); a needle containing one never matches either.
+//
+// Instances are immutable once constructed and may be shared freely.
+//
+public class BoyerMoore implements NeedleScanner {
+
+	// the term itself
+	protected final char[] needleA;
+	protected final int needleLen;
+
+	// tables for how far ahead we should skip
+	protected final int[] badCharA, goodSuffA;
+
+	// false if the needle has chars >= alphaSize
+	protected final boolean inAlphabet;
+
+	public BoyerMoore(String needle, int alphaSize){
+		needleA = needle.toCharArray();
+		needleLen = needleA.length;
+
+		badCharA = new int[alphaSize];
+		goodSuffA = new int[needleLen + 1];
+
+		boolean in = true;
+		for(char c : needleA) in &= c < alphaSize;
+		inAlphabet = in;
+
+		// calculate skip tables
+		badCharA_init();
+		goodSuffA_init(new int[needleLen + 1]);
+	}
+
+	public String toString(){
+		return new String(needleA);
+	}
+
+	// Returns the index of the first match in haystackA at or after
+	//	  'from', or -1 if there is none.  After a match at i, the next
+	//	  possible match starts at i + shift().
+	//
+	public int indexOf(char[] haystackA, int haystackLen, int from){
+		int i = from;
+		int j;
+		if(needleLen == 0 || !inAlphabet) return -1;
+		while(i <= haystackLen - needleLen){
+			j = needleLen-1;
+
+			// loop from right to left, while chars match
+			while(j >= 0 && needleA[j]==haystackA[i+j]) j--;
+
+			if(j < 0)// matched whole pattern
+				return i;
+			// didn't match whole pattern, so jump by largest skip
+			char c = haystackA[i+j];
+			i += Math.max(goodSuffA[j+1], 
+					j - (c < badCharA.length ? badCharA[c] : -1));
+		}
+		return -1;
+	}
+
+	// every match, overlapping ones included
+	public void scan(char[] haystackA, int from, int to, int pattern,
+			AhoCorasick.Hits out){
+		for(int i = indexOf(haystackA, to, from); i >= 0;
+				i = indexOf(haystackA, to, i + shift()))
+			out.hit(pattern, i);
+	}
+
+	// how far to move on after a full match
+	public int shift(){
+		return goodSuffA[0];
+	}
+
+	// Easier of the two table calculations, makes the BM structure commonly
+	//	  referred to as the 'bad character shift' table.
+	//	  Works exactly as described on Wikipedia. (where I got it!)
+	//
+	protected void badCharA_init(){
+
+		for(int i = 0; i < badCharA.length; i++)
+			badCharA[i] = -1;
+
+		for(int j = 0; j< needleLen; j++)
+			if(needleA[j] < badCharA.length)
+				badCharA[ needleA[j] ] = j;
+	}
+
+	//  More complicated of the two table initializations.
+	//	  Where Boyer-Moore gets its speed.
+	//	 	Fills goodSuffA[], a table that holds the following:
+	//	 	On a mismatch, goodSuffA[j] contains
+	//	  how far ahead we can jump in our search, given that
+	//	  we had matched j chars of our query before failing.
+	//
+	protected void goodSuffA_init(int[] suff){
+		// suff[i] contains the start index of the widest suffix border
+		// of the pattern starting at i
+		int i=needleLen, j=needleLen+1;
+		suff[i]=j;
+		while (i>0){
+			while (j<=needleLen && needleA[i-1]!=needleA[j-1]){
+				if (goodSuffA[j]==0) goodSuffA[j]=j-i;
+				j=suff[j];
+			}
+			i--; j--;
+			suff[i]=j;
+		}
+
+		j = suff[0];
+		for(i = 0; i <= needleLen; i++){
+			if(goodSuffA[i]==0)
+				goodSuffA[i] = j;
+			if(i==j)
+				j = suff[j];
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package herrick.test;
+
+import java.util.*;
+
+// A query that has already been through format_Q, phrase extraction,
+// rmCommon and rmDupes, with every needle we might search for compiled
+// into one AhoCorasick automaton.  Build one with Highlighter.compile()
+// and hand it to highlight_doc() for as many documents as you like;
+// nothing in here is touched per document.
+//
+// A document is scanned once for all needles, then the hits are used
+// depending on what matched:
+//	 -phrases[]:    if any quoted phrase matched, use every one that
+//	                did, plus rest[], otherwise fall back to terms[]
+//	 -no phrases:   if exact (the query as typed, less commons)
+//	                matched, use it, otherwise fall back to terms[]
+//
+// phrases[], exact, rest[] and terms[] are indexes into needles[].
+//
+public class CompiledQuery {
+
+	// format(query), for the doc==query base case
+	protected final String formatted;
+
+	// every distinct needle, and how many words each spans
+	protected final String[] needles;
+	protected final int[] qWords;
+	protected final int alphaSize;
+
+	// a scanner per needle, if scanning for each separately beats
+	//	  one pass of the automaton (null otherwise); see MatcherCosts
+	protected final NeedleScanner[] scanners;
+
+	// one automaton over all the needles: built up front if the plan
+	//	  is one pass of it, else only if something asks for it (see
+	//	  automaton())
+	protected volatile AhoCorasick automaton;
+
+	// the same needles as UTF-8, for documents prepared from bytes;
+	//	  built the first time one is searched (see utf8())
+	private volatile AhoCorasick utf8Automaton;
+	private byte[] utf8Formatted;
+
+	protected final int[] phrases;
+	protected final int exact;
+	protected final int[] rest;
+	protected final int[] terms;
+
+	// the 'no query' query
+	protected CompiledQuery(){
+		formatted = null;
+		needles = new String[0];
+		qWords = new int[0];
+		alphaSize = 0;
+		scanners = null;
+		exact = -1;
+		phrases = rest = terms = new int[0];
+	}
+
+	// exact may be null, rest/terms are already split into words
+	protected CompiledQuery(String formatted, String[] phrases, String exact,
+			String[] rest, String[] terms, int alphaSize, MatcherCosts costs){
+		this.formatted = formatted;
+		ArrayList<String> all = new ArrayList<String>();
+		this.phrases = addAll(all, phrases);
+		this.exact = add(all, exact);
+		this.rest = addAll(all, rest);
+		this.terms = addAll(all, terms);
+
+		needles = all.toArray(new String[all.size()]);
+		qWords = new int[needles.length];
+		for(int i = 0; i < needles.length; i++)
+			qWords[i] = needles[i].split("\\s+").length;
+		this.alphaSize = alphaSize;
+		scanners = costs.plan(needles, alphaSize);
+		if(scanners == null)
+			automaton = new AhoCorasick(needles, alphaSize);
+	}
+
+	// The automaton over all the needles (null for no query), built
+	//	  now if the plan went without it.  StreamingHighlighter always
+	//	  needs it, since its state carries from one buffer to the next.
+	//
+	protected AhoCorasick automaton(){
+		AhoCorasick a = automaton;
+		if(a != null || formatted == null) return a;
+		synchronized(this){
+			if(automaton == null)
+				automaton = new AhoCorasick(needles, alphaSize);
+			return automaton;
+		}
+	}
+
+	// VectorScanner's constructor, if jdk.incubator.vector is loaded
+	//	  and VectorScanner was compiled (JDK 16+), or null.  Set
+	//	  -Dherrick.vector=false to turn it off.
+	//
+	protected static final java.lang.reflect.Constructor<?> VECTOR = findVector();
+
+	private static java.lang.reflect.Constructor<?> findVector(){
+		if("false".equals(System.getProperty("herrick.vector"))) return null;
+		try{
+			if(!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+				return null;
+			return Class.forName("herrick.test.VectorScanner")
+				.getConstructor(String.class, int.class);
+		}catch(Throwable t){// not compiled, or can't link
+			return null;
+		}
+	}
+
+	// true if there was no query at all (null or "")
+	public boolean isEmpty(){
+		return formatted == null;
+	}
+
+	// What this query searches for and how it weights it, as a
+	//	  String: two queries with the same key give the same weights
+	//	  on any document, however they were typed.  Order only
+	//	  matters for the exact needle, so the rest are sorted.
+	//	  (The doc==query case still depends on 'formatted'.)
+	//
+	public String key(){
+		if(isEmpty()) return "";
+		StringBuilder sb = new StringBuilder();
+		appendKey(sb, 'P', phrases);
+		appendKey(sb, 'E', exact < 0 ? new int[0] : new int[]{exact});
+		appendKey(sb, 'R', rest);
+		appendKey(sb, 'T', terms);
+		return sb.toString();
+	}
+
+	private void appendKey(StringBuilder sb, char role, int[] ids){
+		String[] words = new String[ids.length];
+		for(int i = 0; i < ids.length; i++)
+			words[i] = needles[ids[i]];
+		Arrays.sort(words);
+		sb.append(role);
+		for(String w : words)
+			sb.append('\u0000').append(w);
+		sb.append('\u0001');
+	}
+
+	// Automaton over the needles' UTF-8 bytes (each byte one 'char'
+	//	  of a 256 letter alphabet), so non-ASCII needles match too.
+	//
+	protected AhoCorasick utf8(){
+		AhoCorasick a = utf8Automaton;
+		if(a != null) return a;
+		synchronized(this){
+			if(utf8Automaton == null){
+				String[] bytes = new String[needles.length];
+				for(int i = 0; i < needles.length; i++)
+					bytes[i] = new String(Utf8Tokenizer.encode(needles[i]),
+							java.nio.charset.StandardCharsets.ISO_8859_1);
+				utf8Formatted = formatted == null ? null
+					: Utf8Tokenizer.encode(formatted);
+				utf8Automaton = new AhoCorasick(bytes, 256);
+			}
+			return utf8Automaton;
+		}
+	}
+
+	// formatted, as UTF-8 (see utf8())
+	protected byte[] utf8Formatted(){
+		utf8();
+		return utf8Formatted;
+	}
+
+	// index of needle in all, adding it if it's new
+	private static int add(ArrayList<String> all, String needle){
+		if(needle==null || needle.length()==0) return -1;
+		int i = all.indexOf(needle);
+		if(i >= 0) return i;
+		all.add(needle);
+		return all.size()-1;
+	}
+
+	// indexes of the (non-empty) words, each listed once
+	private static int[] addAll(ArrayList<String> all, String[] words){
+		int[] rtn = new int[words.length];
+		int n = 0;
+		for(int i = 0; i < words.length; i++){
+			int w = add(all, words[i]);
+			boolean dupe = w < 0;
+			for(int j = 0; j < n && !dupe; j++)
+				dupe = rtn[j] == w;
+			if(!dupe) rtn[n++] = w;
+		}
+		return Arrays.copyOf(rtn, n);
+	}
+}
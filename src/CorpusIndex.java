@@ -0,0 +1,389 @@
+package herrick.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Positional inverted index over a stored corpus, for when the same
+// documents are highlighted over and over.  Each document is prepared
+// once; its formatted words are numbered in a shared dictionary and
+// their positions recorded per term.  Highlighting then fills the hit
+// buffers straight from the postings, and the document text is only
+// read to render the snippet.
+//
+// Matches are the same as a scan of the formatted text would find,
+// partial words included:
+//	 -a one-word needle matches every dictionary term it occurs in
+//	  (once per occurrence, so "aa" counts twice in "aaa"), which
+//	  covers the prefix matches the README promises ('auto' in
+//	  'automobile') as well as infixes
+//	 -a needle of n > 1 words matches where a term ending with its
+//	  first word is followed by its middle words exactly and then a
+//	  term starting with its last word
+// Terms are found by scanning the dictionary, not the documents, once
+// per query; see expand().
+//
+// Add documents from one thread at a time; highlighting is safe from
+// any number of threads, each with its own Scratch.
+//
+//	 CorpusIndex idx = new CorpusIndex(h);
+//	 idx.add(id, text);  // for every document
+//	 CorpusIndex.Expansion e = idx.expand(h.compile(query));
+//	 idx.highlight_doc(id, e, scratch);
+//
+public class CorpusIndex {
+
+	protected final Highlighter h;
+
+	// every distinct formatted word in the corpus, by id
+	protected final ArrayList<String> terms = new ArrayList<String>();
+	protected final HashMap<String, Integer> termIds = new HashMap<String, Integer>();
+
+	// terms.size(), readable without the lock, so highlighting only
+	//	  takes it to catch up with new terms
+	protected volatile int termCount;
+
+	protected final ConcurrentHashMap<String, Entry> docs =
+		new ConcurrentHashMap<String, Entry>();
+
+	public CorpusIndex(Highlighter h){
+		this.h = h;
+	}
+
+	// One indexed document.  Positions count only the words with
+	//	  any formatted text, so consecutive positions are the
+	//	  words a multi-word needle runs across.
+	//
+	protected static class Entry {
+		final PreparedDocument d;
+		final int[] word;      // position -> word index in d
+		final int[] termAt;    // position -> term id
+		// postings: positions of term postTerm[i] are
+		//	  postPos[postStart[i] .. postStart[i+1])
+		final int[] postTerm, postStart, postPos;
+
+		Entry(PreparedDocument d, int[] word, int[] termAt){
+			this.d = d;
+			this.word = word;
+			this.termAt = termAt;
+
+			// sort positions by (term, position)
+			long[] keys = new long[termAt.length];
+			for(int p = 0; p < keys.length; p++)
+				keys[p] = ((long)termAt[p] << 32) | p;
+			Arrays.sort(keys);
+			int distinct = 0;
+			for(int i = 0; i < keys.length; i++)
+				if(i == 0 || (keys[i] >>> 32) != (keys[i-1] >>> 32)) distinct++;
+			postTerm = new int[distinct];
+			postStart = new int[distinct+1];
+			postPos = new int[keys.length];
+			int t = -1;
+			for(int i = 0; i < keys.length; i++){
+				if(i == 0 || (keys[i] >>> 32) != (keys[i-1] >>> 32)){
+					postTerm[++t] = (int)(keys[i] >>> 32);
+					postStart[t] = i;
+				}
+				postPos[i] = (int)keys[i];
+			}
+			postStart[distinct] = keys.length;
+		}
+
+		// First index at or after 'from' whose term is >= term.
+		//	  Gallops out from 'from' before the binary search, so a
+		//	  sorted run of terms is looked up in one sweep, however
+		//	  long it is: O(log gap) each, not O(log n).
+		//
+		int seek(int term, int from){
+			int n = postTerm.length, lo = from, hi = from, step = 1;
+			while(hi < n && postTerm[hi] < term){
+				lo = hi+1;
+				hi = lo + step;
+				step <<= 1;
+			}
+			int i = Arrays.binarySearch(postTerm, lo, Math.min(hi, n), term);
+			return i < 0 ? -i-1 : i;
+		}
+	}
+
+	// Indexes doc under id, replacing whatever was there.  Empty or
+	//	  null docs are dropped, as highlight_doc() returns null for them.
+	//
+	public synchronized void add(String id, String doc){
+		PreparedDocument d = h.prepare(doc);
+		if(d == null){
+			docs.remove(id);
+			return;
+		}
+		int n = 0;
+		for(int i = 0; i < d.words; i++)
+			if(d.wordEnd[i] > d.wordStart[i]) n++;
+		int[] word = new int[n], termAt = new int[n];
+		n = 0;
+		for(int i = 0; i < d.words; i++){
+			if(d.wordEnd[i] == d.wordStart[i]) continue;
+			String t = new String(d.haystackA, d.wordStart[i],
+					d.wordEnd[i] - d.wordStart[i]);
+			Integer id2 = termIds.get(t);
+			if(id2 == null){
+				id2 = terms.size();
+				terms.add(t);
+				termIds.put(t, id2);
+				termCount = terms.size();
+			}
+			word[n] = i;
+			termAt[n++] = id2;
+		}
+		docs.put(id, new Entry(d, word, termAt));
+	}
+
+	public boolean remove(String id){
+		return docs.remove(id) != null;
+	}
+
+	public boolean contains(String id){
+		return docs.containsKey(id);
+	}
+
+	public int size(){
+		return docs.size();
+	}
+
+	// distinct terms in the dictionary
+	public int terms(){
+		return termCount;
+	}
+
+	// The prepared form of the document stored under id, or null
+	public PreparedDocument document(String id){
+		Entry e = docs.get(id);
+		return e == null ? null : e.d;
+	}
+
+	public String highlight_doc(String id, String query){
+		return highlight_doc(id, expand(h.compile(query)), new Scratch());
+	}
+
+	// null if there's no such document
+	public String highlight_doc(String id, Expansion x, Scratch s){
+		Entry e = docs.get(id);
+		if(e == null) return null;
+		return h.highlight_doc(e.d, x.q, s, x.source(e));
+	}
+
+	public HighlightSpans highlightSpans(String id, Expansion x, Scratch s){
+		Entry e = docs.get(id);
+		if(e == null) return null;
+		return h.highlightSpans(e.d, x.q, s, x.source(e));
+	}
+
+	// Works out which dictionary terms each of q's needles can match.
+	//	  Documents added later are picked up by the next highlight
+	//	  with it, which only looks at the new terms.
+	//
+	public Expansion expand(CompiledQuery q){
+		Expansion x = new Expansion(q);
+		x.update();
+		return x;
+	}
+
+	// A CompiledQuery resolved against the dictionary.  Safe to share
+	//	  between threads, like the CompiledQuery itself: catching up
+	//	  with new terms builds a new Terms and swaps it in.
+	//
+	public class Expansion {
+		protected final CompiledQuery q;
+
+		// per needle, split into words; null if it can never match
+		protected final String[][] words;
+
+		protected volatile Terms resolved;
+
+		protected Expansion(CompiledQuery q){
+			this.q = q;
+			words = new String[q.needles.length][];
+			for(int p = 0; p < words.length; p++)
+				if(inAlphabet(q.needles[p]))
+					words[p] = q.needles[p].split(" ");
+			resolved = new Terms(words);
+		}
+
+		protected boolean inAlphabet(String needle){
+			if(needle.length() == 0) return false;
+			for(int i = 0; i < needle.length(); i++)
+				if(needle.charAt(i) >= q.alphaSize) return false;
+			return true;
+		}
+
+		// catch up with terms added since last time
+		protected void update(){
+			synchronized(CorpusIndex.this){
+				Terms old = resolved;
+				int to = terms.size();
+				if(old.seen == to) return;
+				Terms t = new Terms(old);
+				for(int id = old.seen; id < to; id++)
+					t.add(words, id, terms.get(id));
+				for(int p = 0; p < words.length; p++)
+					if(words[p] != null && words[p].length > 1)
+						t.middle[p] = middleIds(words[p]);
+				t.seen = to;
+				resolved = t;
+			}
+		}
+
+		// ids of w[1 .. length-2], or null if any isn't a term
+		private int[] middleIds(String[] w){
+			int[] rtn = new int[w.length-2];
+			for(int i = 0; i < rtn.length; i++){
+				Integer id = termIds.get(w[i+1]);
+				if(id == null) return null;
+				rtn[i] = id;
+			}
+			return rtn;
+		}
+
+		protected Highlighter.HitSource source(final Entry e){
+			if(resolved.seen != termCount) update();
+			final Terms t = resolved;
+			return new Highlighter.HitSource(){
+				public void hits(CompiledQuery q, Scratch s){
+					Expansion.this.hits(t, e, s);
+				}
+			};
+		}
+
+		// Fills s.hits for document e from its postings.  Expanded
+		//	  terms are in id order, like the postings, so each needle's
+		//	  terms are merged with them in one sweep (see seek()).
+		//
+		protected void hits(Terms t, Entry e, Scratch s){
+			int n = e.postTerm.length;
+			for(int p = 0; p < words.length; p++){
+				if(words[p] == null) continue;
+				if(words[p].length == 1){
+					IntList l = t.single[p];
+					for(int i = 0, j = 0; i < l.size; i += 2){
+						j = e.seek(l.a[i], j);
+						if(j == n) break;
+						if(e.postTerm[j] != l.a[i]) continue;
+						for(int k = e.postStart[j]; k < e.postStart[j+1]; k++)
+							for(int c = 0; c < l.a[i+1]; c++)
+								s.hitWord(p, e.word[e.postPos[k]]);
+					}
+					continue;
+				}
+				int[] mid = t.middle[p];
+				if(mid == null) continue;
+				int w = words[p].length;
+				IntList l = t.first[p];
+				for(int i = 0, j = 0; i < l.size; i++){
+					j = e.seek(l.a[i], j);
+					if(j == n) break;
+					if(e.postTerm[j] != l.a[i]) continue;
+					for(int k = e.postStart[j]; k < e.postStart[j+1]; k++){
+						int pos = e.postPos[k];
+						if(pos + w > e.termAt.length) continue;
+						boolean ok = t.last[p].get(e.termAt[pos + w-1]);
+						for(int m = 0; ok && m < mid.length; m++)
+							ok = e.termAt[pos+1+m] == mid[m];
+						if(ok) s.hitWord(p, e.word[pos]);
+					}
+				}
+			}
+		}
+	}
+
+	// Which terms each needle of an Expansion can match, as of the
+	//	  first 'seen' terms of the dictionary.  Never changed once
+	//	  published.
+	//
+	protected static class Terms {
+		// one-word needles: (term, occurrences) pairs that contain it
+		final IntList[] single;
+
+		// longer needles: which terms end with the first word / start
+		//	  with the last, and the middle words' term ids (null if
+		//	  any of them isn't a term yet)
+		final IntList[] first;
+		final BitSet[] last;
+		final int[][] middle;
+
+		int seen;
+
+		Terms(String[][] words){
+			int n = words.length;
+			single = new IntList[n];
+			first = new IntList[n];
+			last = new BitSet[n];
+			middle = new int[n][];
+			for(int p = 0; p < n; p++){
+				if(words[p] == null) continue;
+				if(words[p].length == 1)
+					single[p] = new IntList();
+				else{
+					first[p] = new IntList();
+					last[p] = new BitSet();
+				}
+			}
+		}
+
+		// copy of old, to extend
+		Terms(Terms old){
+			int n = old.single.length;
+			single = new IntList[n];
+			first = new IntList[n];
+			last = new BitSet[n];
+			middle = old.middle.clone();
+			for(int p = 0; p < n; p++){
+				if(old.single[p] != null) single[p] = old.single[p].copy();
+				if(old.first[p] != null) first[p] = old.first[p].copy();
+				if(old.last[p] != null) last[p] = (BitSet)old.last[p].clone();
+			}
+			seen = old.seen;
+		}
+
+		void add(String[][] words, int id, String term){
+			for(int p = 0; p < words.length; p++){
+				String[] w = words[p];
+				if(w == null) continue;
+				if(w.length == 1){
+					int c = occurrences(term, w[0]);
+					if(c > 0){
+						single[p].add(id);
+						single[p].add(c);
+					}
+				}
+				else{
+					if(term.endsWith(w[0])) first[p].add(id);
+					if(term.startsWith(w[w.length-1])) last[p].set(id);
+				}
+			}
+		}
+	}
+
+	// (possibly overlapping) occurrences of w in term
+	protected static int occurrences(String term, String w){
+		int c = 0;
+		for(int i = term.indexOf(w); i >= 0; i = term.indexOf(w, i+1))
+			c++;
+		return c;
+	}
+
+	// growable int[], for the expansions
+	protected static class IntList {
+		int[] a = new int[4];
+		int size;
+
+		void add(int x){
+			if(size == a.length) a = Arrays.copyOf(a, size*2);
+			a[size++] = x;
+		}
+
+		IntList copy(){
+			IntList rtn = new IntList();
+			rtn.a = Arrays.copyOf(a, Math.max(4, size));
+			rtn.size = size;
+			return rtn;
+		}
+	}
+}
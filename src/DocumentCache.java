@@ -0,0 +1,118 @@
+package herrick.test;
+
+import java.util.*;
+
+// Bounded LRU cache of PreparedDocuments, keyed by (document id,
+// version).  Bounded by total PreparedDocument.weight() rather than
+// entry count, so a few huge documents can't crowd out memory.  A
+// document that grows a suffix array while cached (see
+// Highlighter.setSuffixArrays()) is weighed again there and then,
+// which can evict others, or itself.
+//
+// A new version of a document simply misses; the old version ages
+// out like anything else.  Safe to share between threads.
+//
+public class DocumentCache {
+
+	protected final Highlighter h;
+	protected final long maxWeight;
+	protected long weight;
+
+	// access-ordered, so iteration starts at the least recently used
+	protected final LinkedHashMap<Key, PreparedDocument> map =
+		new LinkedHashMap<Key, PreparedDocument>(16, 0.75f, true);
+
+	public DocumentCache(Highlighter h, long maxWeight){
+		this.h = h;
+		this.maxWeight = maxWeight;
+	}
+
+	// Returns the prepared form of (id, version), preparing 'text'
+	//	  and caching it if we don't have it yet.  Returns null for
+	//	  a null or empty text, same as highlight_doc().
+	//
+	public PreparedDocument get(String id, long version, String text){
+		Key k = new Key(id, version);
+		synchronized(this){
+			PreparedDocument d = map.get(k);
+			if(d != null) return d;
+		}
+		// prepare outside the lock, another thread might beat us to it
+		PreparedDocument d = h.prepare(text);
+		if(d == null) return null;
+		synchronized(this){
+			PreparedDocument old = map.put(k, d);
+			if(old != null) drop(old);
+			d.cache = this;// before weighing, see grew()
+			d.charged = d.weight();
+			weight += d.charged;
+			evict();
+		}
+		return d;
+	}
+
+	public synchronized void remove(String id, long version){
+		PreparedDocument old = map.remove(new Key(id, version));
+		if(old != null) drop(old);
+	}
+
+	// d got heavier (a suffix array): count the difference, if d is
+	//	  still in the cache that prepared it
+	//
+	protected static void grew(PreparedDocument d){
+		DocumentCache c = d.cache;// checked again under c's lock
+		if(c != null) c.reweigh(d);
+	}
+
+	protected synchronized void reweigh(PreparedDocument d){
+		if(d.cache != this) return;// evicted meanwhile
+		long w = d.weight();
+		weight += w - d.charged;
+		d.charged = w;
+		evict();
+	}
+
+	// stop counting old, which is out of the map
+	private void drop(PreparedDocument old){
+		weight -= old.charged;
+		old.cache = null;
+	}
+
+	public synchronized int size(){
+		return map.size();
+	}
+
+	public synchronized long weight(){
+		return weight;
+	}
+
+	// drop least recently used entries until we're under maxWeight
+	protected void evict(){
+		Iterator<PreparedDocument> it = map.values().iterator();
+		while(weight > maxWeight && it.hasNext()){
+			PreparedDocument d = it.next();
+			it.remove();
+			drop(d);
+		}
+	}
+
+	protected static final class Key {
+		final String id;
+		final long version;
+
+		Key(String id, long version){
+			this.id = id;
+			this.version = version;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return version == k.version && id.equals(k.id);
+		}
+
+		public int hashCode(){
+			return 31*id.hashCode() + (int)(version ^ (version >>> 32));
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package herrick.test;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Documents prepared once, at ingest, and kept on disk in the form
+// highlight_doc() searches: each one's original UTF-8, its formatted
+// UTF-8 (see Utf8Tokenizer) and its word offset table.  The file is
+// memory-mapped, so highlighting a stored document searches the
+// formatted bytes and renders the snippet straight out of the mapping
+// (the OS page cache, for hot documents).  Nothing is read into a
+// String, split or formatted again; the only copy is the word offsets,
+// into buffers the Scratch keeps.
+//
+//	 DocumentStore.Writer w = DocumentStore.create(path, h);
+//	 w.add(text);  // for every document; returns its number
+//	 w.close();
+//
+//	 DocumentStore st = DocumentStore.open(path, h);
+//	 st.highlight_doc(n, h.compile(query), scratch);
+//
+// Open a store with a Highlighter set up like the one that wrote it
+// (setSkipStopWords(), setStopWords()), since that's what formatted it.
+//
+// Layout, all ints big-endian and every record 4-aligned:
+//	 header:  MAGIC, VERSION, flags (1 = stopwords skipped)
+//	 record:  words (-1 for a null doc), original length, formatted
+//	          length, then origStart[], origEnd[], wordStart[],
+//	          wordEnd[] (words ints each), the original bytes and the
+//	          formatted bytes, padded to 4
+//	 index:   the offset (long) of each record, then the count (int)
+//	 trailer: the offset of the index (long), MAGIC
+// Records never cross a SEGMENT boundary, so each one sits in a single
+// mapping however big the file gets.
+//
+// Safe to share between threads once open; writing is one thread only.
+//
+public class DocumentStore implements Closeable {
+
+	protected static final int MAGIC = 0x484c4453; // "HLDS"
+	protected static final int VERSION = 2;
+	protected static final long SEGMENT = 1L << 30;
+
+	protected final Highlighter h;
+	protected final FileChannel ch;
+	protected final MappedByteBuffer[] segments;
+	protected final long[] offsets;
+
+	protected DocumentStore(Highlighter h, FileChannel ch) throws IOException {
+		this.h = h;
+		this.ch = ch;
+
+		// check what it says about itself before mapping any of it
+		long size = ch.size();
+		if(size < 28) throw new IOException("not a DocumentStore");
+		ByteBuffer head = read(ch, 0, 12);
+		ByteBuffer tail = read(ch, size - 16, 16);
+		if(head.getInt(0) != MAGIC || tail.getInt(12) != MAGIC)
+			throw new IOException("not a DocumentStore");
+		if(head.getInt(4) != VERSION)
+			throw new IOException("DocumentStore version " + head.getInt(4));
+		if((head.getInt(8) == 1) != h.SKIP_STOPWORDS)
+			throw new IllegalArgumentException("store was written with "
+					+ "setSkipStopWords(" + !h.SKIP_STOPWORDS + ")");
+		int count = tail.getInt(0);
+		long index = tail.getLong(4);
+		if(count < 0 || index < 12 || index + 8L*count != size - 16)
+			throw new IOException("DocumentStore index is corrupt");
+
+		offsets = new long[count];
+		for(int i = 0; i < count; i += INDEX_CHUNK){
+			int n = Math.min(INDEX_CHUNK, count - i);
+			read(ch, index + 8L*i, 8*n).asLongBuffer().get(offsets, i, n);
+		}
+		for(long o : offsets)
+			if(o < 12 || o + 12 > index)
+				throw new IOException("DocumentStore index is corrupt");
+
+		segments = new MappedByteBuffer[(int)((size + SEGMENT-1) / SEGMENT)];
+		for(int i = 0; i < segments.length; i++)
+			segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, i*SEGMENT,
+					Math.min(SEGMENT, size - i*SEGMENT));
+	}
+
+	// index entries read or written at a time
+	protected static final int INDEX_CHUNK = 1 << 16;
+
+	// len bytes from at, however many reads that takes
+	private static ByteBuffer read(FileChannel ch, long at, int len) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(len);
+		while(b.hasRemaining())
+			if(ch.read(b, at + b.position()) < 0) throw new EOFException();
+		b.flip();
+		return b;
+	}
+
+	public static DocumentStore open(Path path, Highlighter h) throws IOException {
+		FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+		try{
+			return new DocumentStore(h, ch);
+		}catch(IOException | RuntimeException e){
+			ch.close();
+			throw e;
+		}
+	}
+
+	public static Writer create(Path path, Highlighter h) throws IOException {
+		return new Writer(path, h);
+	}
+
+	// number of documents
+	public int size(){
+		return offsets.length;
+	}
+
+	// Highlights stored document n, same as h.highlight_doc() on its
+	//	  text; null for a null or empty document.
+	//
+	public String highlight_doc(int n, CompiledQuery q, Scratch s){
+		StringBuilder sb = new StringBuilder(h.SNIP_SIZE + 64);
+		try{
+			if(!highlight_doc(n, q, s, sb)) return null;
+		}catch(IOException e){// StringBuilders don't throw
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	public String highlight_doc(int n, String query){
+		return highlight_doc(n, h.compile(query), new Scratch());
+	}
+
+	// Streams the snippet into out; false (and nothing written) for a
+	//	  null or empty document
+	//
+	public boolean highlight_doc(int n, CompiledQuery q, Scratch s, Appendable out)
+			throws IOException {
+		if(!use(n, s)) return false;
+		h.highlight_doc(q, s, null, out);
+		return true;
+	}
+
+	public HighlightSpans highlightSpans(int n, CompiledQuery q, Scratch s){
+		if(!use(n, s)) return null;
+		return h.highlightSpans(q, s, null);
+	}
+
+	// The original text of document n, decoded; null for a null or
+	//	  empty one, like highlight_doc()
+	//
+	public String text(int n){
+		ByteBuffer b = segments[(int)(offsets[n] / SEGMENT)];
+		int at = (int)(offsets[n] % SEGMENT);
+		int words = b.getInt(at);
+		if(words < 0) return null;
+		int origLen = b.getInt(at+4);
+		return StandardCharsets.UTF_8.decode(b.slice(at + 12 + 16*words, origLen))
+			.toString();
+	}
+
+	// points s at document n; false if it's a null or empty one
+	protected boolean use(int n, Scratch s){
+		ByteBuffer b = segments[(int)(offsets[n] / SEGMENT)];
+		int at = (int)(offsets[n] % SEGMENT);
+		int words = b.getInt(at);
+		if(words < 0){
+			s.useNone();
+			return false;
+		}
+		int origLen = b.getInt(at+4), hayLen = b.getInt(at+8);
+		int text = at + 12 + 16*words;
+		s.use(b.slice(text, origLen), b.slice(text + origLen, hayLen),
+				b.slice(at + 12, 16*words).asIntBuffer(), 0, words);
+		return true;
+	}
+
+	public void close() throws IOException {
+		ch.close();
+	}
+
+	// Writes a new store, preparing each document as it's added
+	public static class Writer implements Closeable {
+		protected final Highlighter h;
+		protected final FileChannel ch;
+		protected final ArrayList<Long> offsets = new ArrayList<Long>();
+		protected long pos;
+
+		protected Writer(Path path, Highlighter h) throws IOException {
+			this.h = h;
+			ch = FileChannel.open(path, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			ByteBuffer head = ByteBuffer.allocate(12);
+			head.putInt(MAGIC).putInt(VERSION).putInt(h.SKIP_STOPWORDS ? 1 : 0);
+			head.flip();
+			write(head);
+		}
+
+		// adds a document, returning its number
+		public int add(String text) throws IOException {
+			return add(text == null ? null : text.getBytes(StandardCharsets.UTF_8));
+		}
+
+		public int add(byte[] utf8) throws IOException {
+			PreparedDocument d = h.prepare(utf8);
+			int words = d == null ? -1 : d.words;
+			int origLen = d == null ? 0 : d.originalB.remaining();
+			int hayLen = d == null ? 0 : d.haystackLen;
+			long len = 12 + 16L*Math.max(words, 0) + origLen + hayLen;
+			len = (len + 3) & ~3L;
+			if(len > SEGMENT)
+				throw new IllegalArgumentException("document too big to store");
+			if(pos / SEGMENT != (pos + len - 1) / SEGMENT)// skip to the next segment
+				pos += SEGMENT - pos % SEGMENT;
+
+			ByteBuffer rec = ByteBuffer.allocate((int)len);
+			rec.putInt(words).putInt(origLen).putInt(hayLen);
+			if(d != null){
+				IntBuffer ib = rec.asIntBuffer();
+				ib.put(d.origStart, 0, words).put(d.origEnd, 0, words)
+					.put(d.wordStart, 0, words).put(d.wordEnd, 0, words);
+				rec.position(12 + 16*words);
+				rec.put(d.originalB.duplicate()).put(d.haystackB, 0, hayLen);
+			}
+			rec.clear();
+			offsets.add(pos);
+			write(rec);
+			return offsets.size()-1;
+		}
+
+		protected void write(ByteBuffer b) throws IOException {
+			while(b.hasRemaining()) pos += ch.write(b, pos);
+		}
+
+		// writes the index; the store can't be opened until this is done
+		public void close() throws IOException {
+			try{
+				long index = pos;
+				ByteBuffer idx = ByteBuffer.allocate(8*INDEX_CHUNK);
+				for(int i = 0; i < offsets.size(); i++){
+					idx.putLong(offsets.get(i));
+					if(!idx.hasRemaining() || i+1 == offsets.size()){
+						idx.flip();
+						write(idx);
+						idx.clear();
+					}
+				}
+				idx.putInt(offsets.size()).putLong(index).putInt(MAGIC);
+				idx.flip();
+				write(idx);
+			}finally{
+				ch.close();
+			}
+		}
+	}
+}
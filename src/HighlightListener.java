@@ -0,0 +1,46 @@
+package herrick.test;
+
+// Hooks for watching the highlighting pipeline from outside, e.g. to
+// find out which stage a slow call spent its time in.  Set one with
+// Highlighter.setListener(); HighlightStats aggregates them and can
+// publish the result over JMX.
+//
+// The default, NONE, is never actually called: the Highlighter checks
+// for it before even reading the clock, so an unwatched Highlighter
+// pays one field compare per phase and nothing else.
+//
+// Calls come from whichever thread is highlighting, possibly many at
+// once, so implementations must be thread-safe.
+//
+public interface HighlightListener {
+
+	// phases, in pipeline order
+	int PREPARE = 0;   // tokenizing/formatting the document
+	int COMPILE = 1;   // formatting the query, building the automaton
+	int SCAN = 2;      // running the automaton over the document
+	int WEIGHTS = 3;   // turning matches into Weights[]
+	int SNIPPET = 4;   // picking the best (or first) snippet
+	int HIGHLIGHT = 5; // writing the snippet out, or its spans
+	int PHASES = 6;
+
+	String[] PHASE_NAMES = {"prepare", "compile", "scan", "weights",
+		"snippet", "highlight"};
+
+	// one phase of one call took 'nanos' nanoseconds
+	void phase(int phase, long nanos);
+
+	// Once per document actually searched: its size in words and
+	//	  formatted chars (each char is one automaton step), how many
+	//	  needles the query had, how many matches they found in all,
+	//	  and whether a phrase/exact match failed and we fell back to
+	//	  the individual terms.
+	//
+	void searched(int docWords, int chars, int needles, int matches,
+			boolean fallback);
+
+	HighlightListener NONE = new HighlightListener(){
+		public void phase(int phase, long nanos){}
+		public void searched(int docWords, int chars, int needles,
+				int matches, boolean fallback){}
+	};
+}
@@ -0,0 +1,73 @@
+package herrick.test;
+
+import java.util.*;
+
+// Offsets-only result of Highlighter.highlightSpans(): the snippet and
+// each highlighted run as [start, end) offsets into the ORIGINAL
+// document text, so the caller can render them however it likes.
+//
+// Unlike the String result, whitespace between words is whatever the
+// original had; nothing is collapsed.
+//
+public class HighlightSpans {
+
+	// false for the no-match / no-query case (first snippet, no spans)
+	protected final boolean matched;
+
+	// see Scratch.truncated()
+	protected boolean truncated;
+
+	// the snippet, [start, end) in the original
+	protected int start, end;
+
+	// spans[2*i], spans[2*i+1] = [start, end) of highlighted run i
+	protected int[] spans = new int[8];
+	protected int size; // number of ints used in spans
+
+	protected HighlightSpans(boolean matched){
+		this.matched = matched;
+	}
+
+	public boolean matched(){
+		return matched;
+	}
+
+	public boolean truncated(){
+		return truncated;
+	}
+
+	public int start(){
+		return start;
+	}
+
+	public int end(){
+		return end;
+	}
+
+	// number of highlighted runs
+	public int size(){
+		return size/2;
+	}
+
+	public int start(int i){
+		return spans[2*i];
+	}
+
+	public int end(int i){
+		return spans[2*i+1];
+	}
+
+	protected void add(int offset){
+		if(size == spans.length)
+			spans = Arrays.copyOf(spans, size*2);
+		spans[size++] = offset;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append('[').append(start).append(", ").append(end).append(')');
+		for(int i = 0; i < size(); i++)
+			sb.append(' ').append(start(i)).append('-').append(end(i));
+		return sb.toString();
+	}
+}
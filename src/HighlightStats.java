@@ -0,0 +1,193 @@
+package herrick.test;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+// A HighlightListener that aggregates everything it hears: a count,
+// total, max and log2 histogram of nanoseconds per phase, plus running
+// totals of the per-search counters.  Lock-free, so one instance can
+// watch any number of threads.
+//
+//	 HighlightStats stats = new HighlightStats();
+//	 h.setListener(stats);
+//	 stats.register(); // optional, shows up in jconsole etc.
+//
+// Percentiles come from the histograms, so they're the upper bound of
+// the bucket they fall in: coarse, but cheap and enough to tell which
+// phase a p99 spike is coming from.
+//
+public class HighlightStats implements HighlightListener, HighlightStatsMBean {
+
+	protected static final int BUCKETS = 64;
+	public static final String DEFAULT_NAME = "herrick.test:type=HighlightStats";
+
+	// per phase
+	protected final AtomicLongArray count = new AtomicLongArray(PHASES);
+	protected final AtomicLongArray total = new AtomicLongArray(PHASES);
+	protected final AtomicLongArray max = new AtomicLongArray(PHASES);
+	protected final AtomicLongArray histogram = new AtomicLongArray(PHASES*BUCKETS);
+
+	// per search
+	protected final AtomicLong searches = new AtomicLong();
+	protected final AtomicLong docWords = new AtomicLong();
+	protected final AtomicLong chars = new AtomicLong();
+	protected final AtomicLong needles = new AtomicLong();
+	protected final AtomicLong matches = new AtomicLong();
+	protected final AtomicLong fallbacks = new AtomicLong();
+
+	public HighlightStats(){}
+
+	public void phase(int phase, long nanos){
+		if(nanos < 0) nanos = 0;
+		count.incrementAndGet(phase);
+		total.addAndGet(phase, nanos);
+		long m;
+		while(nanos > (m = max.get(phase)) && !max.compareAndSet(phase, m, nanos));
+		histogram.incrementAndGet(phase*BUCKETS + bucket(nanos));
+	}
+
+	public void searched(int docWords, int chars, int needles, int matches,
+			boolean fallback){
+		searches.incrementAndGet();
+		this.docWords.addAndGet(docWords);
+		this.chars.addAndGet(chars);
+		this.needles.addAndGet(needles);
+		this.matches.addAndGet(matches);
+		if(fallback) fallbacks.incrementAndGet();
+	}
+
+	// Registers this with the platform MBean server under name
+	//	  (DEFAULT_NAME if null), and returns the name used.
+	//
+	public ObjectName register(String name) throws JMException {
+		ObjectName on = new ObjectName(name==null ? DEFAULT_NAME : name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		return on;
+	}
+
+	public ObjectName register() throws JMException {
+		return register(null);
+	}
+
+	// bucket b holds [2^b, 2^(b+1)); 0 goes in bucket 0 too
+	protected static int bucket(long nanos){
+		return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	// upper bound of the bucket the p'th percentile of phase falls in
+	protected long percentile(int phase, double p){
+		long n = count.get(phase);
+		if(n == 0) return 0;
+		long rank = (long)Math.ceil(p * n), seen = 0;
+		for(int b = 0; b < BUCKETS; b++){
+			seen += histogram.get(phase*BUCKETS + b);
+			if(seen >= rank)
+				return b == 63 ? Long.MAX_VALUE : (1L << (b+1)) - 1;
+		}
+		return max.get(phase);
+	}
+
+	// MBEAN ATTRIBUTES
+
+	public String[] getPhases(){
+		return PHASE_NAMES.clone();
+	}
+
+	public long[] getCounts(){
+		return toArray(count);
+	}
+
+	public long[] getTotalNanos(){
+		return toArray(total);
+	}
+
+	public double[] getMeanNanos(){
+		double[] rtn = new double[PHASES];
+		for(int i = 0; i < PHASES; i++){
+			long n = count.get(i);
+			rtn[i] = n == 0 ? 0 : (double)total.get(i) / n;
+		}
+		return rtn;
+	}
+
+	public long[] getMaxNanos(){
+		return toArray(max);
+	}
+
+	public long[] getP50Nanos(){
+		long[] rtn = new long[PHASES];
+		for(int i = 0; i < PHASES; i++)
+			rtn[i] = percentile(i, 0.50);
+		return rtn;
+	}
+
+	public long[] getP99Nanos(){
+		long[] rtn = new long[PHASES];
+		for(int i = 0; i < PHASES; i++)
+			rtn[i] = percentile(i, 0.99);
+		return rtn;
+	}
+
+	public long[] histogram(String phase){
+		for(int i = 0; i < PHASES; i++){
+			if(PHASE_NAMES[i].equals(phase)){
+				long[] rtn = new long[BUCKETS];
+				for(int b = 0; b < BUCKETS; b++)
+					rtn[b] = histogram.get(i*BUCKETS + b);
+				return rtn;
+			}
+		}
+		throw new IllegalArgumentException("no such phase: " + phase);
+	}
+
+	public long getSearches(){
+		return searches.get();
+	}
+
+	public long getDocWords(){
+		return docWords.get();
+	}
+
+	public long getChars(){
+		return chars.get();
+	}
+
+	public long getNeedles(){
+		return needles.get();
+	}
+
+	public long getMatches(){
+		return matches.get();
+	}
+
+	public long getFallbacks(){
+		return fallbacks.get();
+	}
+
+	// Zeroes everything.  Not atomic with respect to calls in
+	//	  progress, which may land on either side of it.
+	//
+	public void reset(){
+		for(int i = 0; i < PHASES; i++){
+			count.set(i, 0);
+			total.set(i, 0);
+			max.set(i, 0);
+		}
+		for(int i = 0; i < histogram.length(); i++)
+			histogram.set(i, 0);
+		searches.set(0);
+		docWords.set(0);
+		chars.set(0);
+		needles.set(0);
+		matches.set(0);
+		fallbacks.set(0);
+	}
+
+	private static long[] toArray(AtomicLongArray a){
+		long[] rtn = new long[a.length()];
+		for(int i = 0; i < rtn.length; i++)
+			rtn[i] = a.get(i);
+		return rtn;
+	}
+}
@@ -0,0 +1,32 @@
+package herrick.test;
+
+// JMX view of a HighlightStats.  Array attributes are indexed by
+// phase (see HighlightListener), in the order of getPhases().
+//
+public interface HighlightStatsMBean {
+
+	String[] getPhases();
+
+	// calls, and total/mean/max nanoseconds, per phase
+	long[] getCounts();
+	long[] getTotalNanos();
+	double[] getMeanNanos();
+	long[] getMaxNanos();
+
+	// upper bounds from the histograms, so within 2x
+	long[] getP50Nanos();
+	long[] getP99Nanos();
+
+	// raw log2 histogram of one phase: bucket b counts calls that
+	//	  took [2^b, 2^(b+1)) nanoseconds
+	long[] histogram(String phase);
+
+	long getSearches();
+	long getDocWords();
+	long getChars();
+	long getNeedles();
+	long getMatches();
+	long getFallbacks();
+
+	void reset();
+}
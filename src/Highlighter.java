@@ -10,7 +10,8 @@
 //
 //	OVERVIEW
 //	This program splits the given strings into char arrays, which are
-//	then searched with the Boyer-Moore algorithm.  During searches, the
+//	then searched for every term at once with an Aho-Corasick
+//	automaton (see AhoCorasick.java).  During searches, the
 //	number of matches(weights) are summed on a per-word basis.  The 
 //	logic/weighting	is best explained by example:
 //	
@@ -89,29 +90,23 @@
 //		  partial words/phrases do in fact match, but 
 //			the entire word/phrase is highlighted.
 //
-//	-Matches multiple phrases
-//	  -Due to how I count matches, and how I fall through 
-//		certain conditions, it would take some reworking to 
-//		manage this.  As of right now it just finds the first
-//		phrase, and regards the rest as normal terms.
-//		-It wouldn't be THAT hard to implement, as the Pattern
-//		and Matcher are already there. 
-// >>>NOTE: If this feature would make or break me getting
-//    a phone interview (however unlikely that case may be),
-//		give me 2 hours and I'll implement it for you.
+//	-(Matches multiple phrases: done.  Every quoted phrase is a
+//	  needle in the same single pass; each one that matches is
+//	  weighted doubly, along with the words outside the quotes.
+//	  Phrases that don't match add nothing, and if none match
+//	  we fall back to all the words, as before.)
 //
 //
-//	-Removes common words from document for faster searching
-//	  - Rebuilding becomes a problem unless we keep track of 
-//		  what was removed, which doesn't seem worth it.
+//	-(Removes common words from document for faster searching:
+//	  done, see setSkipStopWords().  They're kept as empty words,
+//	  like all-punctuation ones, so nothing needs rebuilding.)
 //	-Any kind of 'smart' processing
 //	  - No NLP, autocompletion, related terms/searches, etc.
 //
 //		FUTURE IDEAS - 
 //		 -re-implement entirely with char[]s.  No String[]s.
-//		  -this would eliminate the need for many proprietary
-//			instance structures used here and save on both 
-//			space and time.
+//		  -(done: documents are now a char[] plus offset
+//			tables, see Tokenizer and PreparedDocument)
 //
 //
 //		Thanks for reading all that.  You did read it, right?
@@ -120,58 +115,57 @@
 
 package herrick.test;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
 
 public class Highlighter {
 
 	protected static final String[] COMMONS = {"a", "and", "be", "for", 
   "from", "has", "i", "in", "is", "it", "of", "on", "to", "the"};
 
-	// Pattern/Matcher Objects for finding a quoted phrase: "phrase here"
-	protected static final Pattern PHRASE_PATTERN = 
-		Pattern.compile("\"[^\"\r\n]*\"");
-	protected Matcher phrMatch;
-	protected String phrQuery;
-
-	// array to hold #matches/weights of each word
-	protected int[] Weights;
-
+	// Configuration only; all per-call state lives in a Scratch.
+	//	  Set these before sharing a Highlighter between threads.
 	protected int ALPHA_SIZE = 128; // ASCII alphabet size
 	protected int SNIP_SIZE = 200; // size of final snippet in chars
-	protected int docWords; // words in document
-	protected int qWords; // holds words in LATEST search
+	protected String START_TAG = "[[HIGHLIGHT]]";
+	protected String END_TAG = "[[ENDHIGHLIGHT]]";
+	protected String SEPARATOR = " ... "; // between top-k snippets
 
-	// Arrays for building / searching document
-	protected String[] origDocA, searchDocA;
+	// common words dropped from queries and, if SKIP_STOPWORDS, from
+	//	  the searched text of documents too (see setStopWords())
+	protected StopWords STOPWORDS = StopWords.DEFAULT;
+	protected boolean SKIP_STOPWORDS = false;
 
-	// Map for <index in doc, index in array>
-	protected HashMap<Integer, Integer> indexMap;
+	// Cutting a search short (see setEarlyStop(), setScanBudget(),
+	//	  setTimeBudget()); 0 for no budget
+	protected boolean EARLY_STOP = false;
+	protected int MAX_SCAN = 0; // formatted chars (UTF-8: bytes)
+	protected long MAX_NANOS = 0;
 
-	// matchesV:  Vector of Integer[2]s.
-	// Each item I in the vector corresponds to a match as found
-	// by boyerMooreSearch.
-	// I[0] = index of first character in the document that was searched.
-	//       NOTE: IN PRESENT CASE THIS IS NOT THE ORIGINAL DOCUMENT.
-	//            IT IS THE FORMATTED, SEARCHABLE ONE.
-	// I[1] = number of words that this match contained.
-	//        If > 1 will be weighted doubly.
-	//
-	protected Vector<Integer[]> matchesV;
+	// documents this long (formatted chars) or longer are searched
+	//	  with a SuffixArray; 0 for never (see setSuffixArrays())
+	protected int SUFFIX_MIN = 0;
 
-	// search-specific arrays for our search parameters
-	protected char[] needleA, haystackA;
-	
-	// search-specific lengths of our search parameters
-	protected int needleLen, haystackLen;
+	// how compile() decides how to look for each needle
+	protected MatcherCosts COSTS = MatcherCosts.DEFAULT;
 
-	// search-specific tables for how far ahead we should skip
-	protected int[] badCharA, goodSuffA, suff;
+	// documents per fork-join task in highlightAll()
+	protected static final int BATCH_GRAIN = 4;
 
+	// per-phase timings and counters (see HighlightListener)
+	protected HighlightListener listener = HighlightListener.NONE;
 
 
 
-	public static void main(String[] args){}
+	// Batch mode: JSONL (or TSV) records of doc and query in, one
+	//	  snippet per record out, in order; see BatchRunner.
+	//
+	public static void main(String[] args) throws java.io.IOException {
+		BatchRunner.main(new Highlighter(), args);
+	}
 
 	public Highlighter(){}
 
@@ -183,97 +177,658 @@ public class Highlighter {
 		this.ALPHA_SIZE = alpha;
 	}
 
+	public void setTags(String start, String end){
+		this.START_TAG = start;
+		this.END_TAG = end;
+	}
+
+	public void setSeparator(String separator){
+		this.SEPARATOR = separator;
+	}
+
+	// Replaces COMMONS.  Words are formatted like a query would be.
+	public void setStopWords(String... words){
+		this.STOPWORDS = new StopWords(words);
+	}
+
+	public void setStopWords(StopWords words){
+		this.STOPWORDS = words==null ? StopWords.NONE : words;
+	}
+
+	// If set, documents are searched without their stopwords, the
+	//	  same way queries are, which shrinks the text every query
+	//	  has to scan (by a third or so for English prose).  Stopwords
+	//	  stay in place as empty words, so snippets still show the
+	//	  original text.  Phrases lose their stopwords too, and doc==
+	//	  query ignores them.  Compile queries and prepare documents
+	//	  with the same setting.
+	//
+	public void setSkipStopWords(boolean skip){
+		this.SKIP_STOPWORDS = skip;
+	}
+
+	// If set, documents are searched a piece at a time (from 4 
+	//	  snippets' worth, doubling), and the search stops as soon as
+	//	  the best snippet so far holds every needle of the best kind
+	//	  the query has: all of its phrases plus the words outside
+	//	  them, or else its exact text, or else all of its terms.
+	//	  No later snippet can beat that but by repeating words, so
+	//	  it's worth trading for not reading the rest of a long
+	//	  document.  Off by default, since a snippet that repeats 
+	//	  the terms can come out differently.
+	//
+	public void setEarlyStop(boolean stop){
+		this.EARLY_STOP = stop;
+	}
+
+	// Searches at most the first maxChars chars of each formatted
+	//	  document (bytes, for UTF-8 ones) and picks the best snippet
+	//	  out of those; Scratch.truncated() says if that left any 
+	//	  out.  0 for no limit.
+	//
+	public void setScanBudget(int maxChars){
+		this.MAX_SCAN = maxChars;
+	}
+
+	// Same, for time: once a search has taken maxNanos, it stops
+	//	  after the piece it's on (as in setEarlyStop()) and goes with
+	//	  the best snippet so far.  0 for no limit.
+	//
+	public void setTimeBudget(long maxNanos){
+		this.MAX_NANOS = maxNanos;
+	}
+
+	// Documents with at least minChars formatted chars get a
+	//	  SuffixArray the first time they're searched, kept with the
+	//	  PreparedDocument (so a DocumentCache keeps it too), and are
+	//	  searched with it from then on: O(m log n) per needle instead
+	//	  of a scan.  It costs O(n log n) to build and 8 bytes per
+	//	  char, which count towards a DocumentCache's weight, so it's
+	//	  for big documents searched many times.  Same results either way;
+	//	  budgets (setScanBudget() etc.) don't apply.  0 for never,
+	//	  the default.  UTF-8 documents are always scanned, and so are
+	//	  the ones the String overloads prepare for a single call
+	//	  (see prepareOnce()): only a PreparedDocument the caller
+	//	  keeps, or a DocumentCache or CorpusIndex does, gets one.
+	//
+	public void setSuffixArrays(int minChars){
+		this.SUFFIX_MIN = minChars;
+	}
+
+	// Replaces the built-in cost model, e.g. with a
+	//	  MatcherCosts.calibrate() for this machine.  Only changes
+	//	  speed, never results.
+	//
+	public void setMatcherCosts(MatcherCosts costs){
+		this.COSTS = costs==null ? MatcherCosts.DEFAULT : costs;
+	}
+
+	// null for none
+	public void setListener(HighlightListener listener){
+		this.listener = listener==null ? HighlightListener.NONE : listener;
+	}
+
 	public String highlight_doc(String doc, String query){
+		return highlight_doc(doc, compile(query), new Scratch());
+	}
+
+	public String highlight_doc(String doc, String query, Scratch s){
+		return highlight_doc(doc, compile(query), s);
+	}
+
+	// Same as above, but with a query that has already been compiled.
+	//	  Use this when running one query against many documents.
+	//
+	public String highlight_doc(String doc, CompiledQuery q){
+		return highlight_doc(doc, q, new Scratch());
+	}
+
+	public String highlight_doc(String doc, CompiledQuery q, Scratch s){
 
 		// BASE CASE
+		if(doc==null || doc.length()==0){
+			s.useNone();
+			return null;
+		}
+
+		return highlight_doc(prepareOnce(doc), q, s);
+	}
+
+	// For documents that are already prepared (see DocumentCache)
+	public String highlight_doc(PreparedDocument d, CompiledQuery q){
+		return highlight_doc(d, q, new Scratch());
+	}
+
+	public String highlight_doc(PreparedDocument d, CompiledQuery q, Scratch s){
+		return highlight_doc(d, q, s, (HitSource)null);
+	}
+
+	// Same, but with hits from src rather than a scan (see CorpusIndex)
+	protected String highlight_doc(PreparedDocument d, CompiledQuery q, Scratch s,
+			HitSource src){
+
+		// BASE CASE
+		if(d==null){
+			s.useNone();
+			return null;
+		}
+
+		s.use(d);
+		StringBuilder sb = new StringBuilder(SNIP_SIZE + 4*START_TAG.length());
+		try{
+			highlight_doc(q, s, src, sb);
+		}catch(IOException e){// StringBuilders don't throw
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	// The rest of it, for a Scratch that's already pointing at its
+	//	  document (see DocumentStore)
+	//
+	protected void highlight_doc(CompiledQuery q, Scratch s, HitSource src,
+			Appendable out) throws IOException {
+		int[] snip = search(q, s, 1, src)[0];
+		long t = start();
+		highlight(s, snip, out);
+		end(HighlightListener.HIGHLIGHT, t);
+	}
+
+	// Streams the snippet straight into out instead of building a
+	//	  String.  Returns false (and writes nothing) for a null doc.
+	//
+	public boolean highlight_doc(PreparedDocument d, CompiledQuery q, Scratch s,
+			Appendable out) throws IOException {
+		if(d==null){
+			s.useNone();
+			return false;
+		}
+		int[] snip = search(d, q, s);
+		long t = start();
+		highlight(s, snip, out);
+		end(HighlightListener.HIGHLIGHT, t);
+		return true;
+	}
+
+	// Up to k non-overlapping snippets instead of one, the best
+	//	  ones by weight, in document order and joined by SEPARATOR.
+	//	  All k come out of a single pass over Weights.
+	//
+	public String highlight_doc(String doc, String query, int k){
 		if(doc==null || doc.length()==0) return null;
+		StringBuilder sb = new StringBuilder(k*(SNIP_SIZE + 64));
+		try{
+			highlight_doc(prepareOnce(doc), compile(query), new Scratch(), k, sb);
+		}catch(IOException e){// StringBuilders don't throw
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
 
-		// now, we want to format our inputs (doc, query)
-		
-		// split document on whitespaces, keep for building snippet
-		origDocA = doc.split("\\s+");
-		docWords = origDocA.length;
+	public boolean highlight_doc(PreparedDocument d, CompiledQuery q, Scratch s,
+			int k, Appendable out) throws IOException {
+		if(d==null){
+			s.useNone();
+			return false;
+		}
+		int[][] snips = search(d, q, s, k);
+		long t = start();
+		for(int j = 0; j < snips.length; j++){
+			if(j > 0) out.append(SEPARATOR);
+			highlight(s, snips[j], out);
+		}
+		end(HighlightListener.HIGHLIGHT, t);
+		return true;
+	}
 
-		// MORE BASE CASES
-		if(query==null || query.length()==0) 
-			return noMatch();
-		if(format(doc).equals(format(query))) 
-			return "[[HIGHLIGHT]]" +noMatch()+"[[ENDHIGHLIGHT]]";
+	// The best snippet at each of several sizes (chars, as for
+	//	  setSnip()), e.g. for different screens, out of one search:
+	//	  the same strings highlight_doc() gives with each size set in
+	//	  turn, for little more than the cost of one.  null for a null
+	//	  doc.
+	//
+	public String[] highlightSizes(String doc, String query, int... sizes){
+		if(doc==null || doc.length()==0) return null;
+		return highlightSizes(prepareOnce(doc), compile(query), new Scratch(), sizes);
+	}
 
-		Weights = new int[docWords];
-		indexMap = new HashMap<Integer, Integer>(docWords);
+	public String[] highlightSizes(PreparedDocument d, CompiledQuery q, Scratch s,
+			int... sizes){
+		if(d==null){
+			s.useNone();
+			return null;
+		}
+		s.use(d);
+		search(q, s, 0, null);
+		long t = start();
+		int[][] snips = new int[sizes.length][];
+		if(s.mode == Scratch.MATCH)
+			snips = bestSnippets(s, sizes, s.searched);
+		else
+			for(int j = 0; j < sizes.length; j++)
+				snips[j] = s.docWords == 0 ? new int[]{0, -1} : firstSnippet(s, sizes[j]);
+		String[] rtn = new String[sizes.length];
+		StringBuilder sb = new StringBuilder();
+		try{
+			for(int j = 0; j < sizes.length; j++){
+				sb.setLength(0);
+				highlight(s, snips[j], sb);
+				rtn[j] = sb.toString();
+			}
+		}catch(IOException e){// StringBuilders don't throw
+			throw new IllegalStateException(e);
+		}
+		end(HighlightListener.HIGHLIGHT, t);
+		return rtn;
+	}
 
-		// format for searching - remove punctuation, excess whitespace
-		doc = format(doc);
-		searchDocA = doc.split("\\s+");
-		query = format_Q(query);
-		
-		// regrettably, iterate through to fill Map
-		indexMap_init();
+	// Offsets-only result: where the snippet and each highlighted run
+	//	  sit in the original text, with no string building at all.
+	//	  Returns null for a null doc.
+	//
+	public HighlightSpans highlightSpans(PreparedDocument d, CompiledQuery q, 
+			Scratch s){
+		return highlightSpans(d, q, s, null);
+	}
 
-		// Check to see if query has explicit phrase(s)
-		phrMatch = PHRASE_PATTERN.matcher(query);
-		if(phrMatch.find()){ //found a phrase 
+	protected HighlightSpans highlightSpans(PreparedDocument d, CompiledQuery q, 
+			Scratch s, HitSource src){
+		if(d==null){
+			s.useNone();
+			return null;
+		}
+		s.use(d);
+		return highlightSpans(q, s, src);
+	}
 
-			// extract phrase query
-			phrQuery = rmPunc(query.substring(phrMatch.start(), phrMatch.end()));
+	// same, for a Scratch that's already pointing at its document
+	protected HighlightSpans highlightSpans(CompiledQuery q, Scratch s, 
+			HitSource src){
+		int[] snip = search(q, s, 1, src)[0];
+		long t = start();
+		HighlightSpans rtn = spans(s, snip);
+		rtn.truncated = s.truncated;
+		end(HighlightListener.HIGHLIGHT, t);
+		return rtn;
+	}
 
-			// don't care about punctuation now, remove from query
-			query = rmPunc(query);
+	protected int[] search(PreparedDocument d, CompiledQuery q, Scratch s){
+		return search(d, q, s, 1)[0];
+	}
 
-			if(boyerMooreSearch(doc, phrQuery)){// we can match our phrase, use it
-				fillWeights(2);
-				if(needleLen!=query.length()){// other words in query
-					String rest = rmDupes(rmCommon(getRest(query, phrQuery)));
-					searchWords(doc, rest);
-				}
+	protected int[][] search(PreparedDocument d, CompiledQuery q, Scratch s,
+			int k){
+		return search(d, q, s, k, null);
+	}
+
+	// Where search() gets each needle's hits, if not from scanning
+	//	  the document: fills s.hits via Scratch.hitWord(), exactly
+	//	  as scan() would have.
+	//
+	protected interface HitSource {
+		void hits(CompiledQuery q, Scratch s);
+	}
+
+	protected int[][] search(PreparedDocument d, CompiledQuery q, Scratch s,
+			int k, HitSource src){
+		s.use(d);
+		return search(q, s, k, src);
+	}
+
+	// The actual pipeline, on the document s is pointing at.
+	//	  Everything it touches besides the (read-only) configuration
+	//	  and query is in s.  Fills s.Weights and returns the [first,
+	//	  last] words of up to k snippets; s.mode says how they should
+	//	  be highlighted.  Hits come from src, or a scan if it's null.
+	//	  With k == 0 it stops at the weights, returning nothing, and
+	//	  leaves the snippets to the caller (see highlightSizes()).
+	//
+	protected int[][] search(CompiledQuery q, Scratch s, int k, HitSource src){
+
+		// MORE BASE CASES
+		if(s.docWords==0){// nothing but whitespace
+			s.mode = Scratch.NO_MATCH;
+			return new int[][]{{0, -1}};
+		}
+		if(q.isEmpty()){
+			s.mode = Scratch.NO_MATCH;
+			return new int[][]{firstSnippet(s)};
+		}
+		if(s.formattedEquals(q)){
+			s.mode = Scratch.ALL;
+			return new int[][]{firstSnippet(s)};
+		}
+
+		s.Weights = new int[s.docWords];
+		s.searched = s.docWords;
+
+		// one pass over the document for every needle in the query
+		//	  (or over as much of it as we need, see scanPrefix())
+		long t = start();
+		int words = s.docWords;
+		if(src == null && SUFFIX_MIN > 0 && s.doc != null && !s.doc.once
+				&& s.haystackA != null && s.haystackLen >= SUFFIX_MIN)
+			src = s.doc.suffixArray();
+		if(src != null){
+			s.resetHits(q.needles.length, q.qWords);
+			src.hits(q, s);
+		}
+		else if(EARLY_STOP || MAX_SCAN > 0 || MAX_NANOS > 0){
+			words = scanPrefix(q, s, Math.max(k, 1));
+			s.searched = words;
+			Arrays.fill(s.Weights, 0, words, 0);
+		}
+		else
+			scan(q, s);
+		t = end(HighlightListener.SCAN, t);
+
+		int tier = weigh(q, s);
+		boolean matched = tier != NONE;
+		boolean fallback = tier >= TERMS && (q.phrases.length > 0 || q.exact >= 0);
+		t = end(HighlightListener.WEIGHTS, t);
+		if(listener != HighlightListener.NONE)
+			listener.searched(s.docWords, s.haystackLen, q.needles.length,
+					totalHits(q, s), fallback);
+
+		int[][] rtn;
+		if(!matched){
+			s.mode = Scratch.NO_MATCH;
+			rtn = new int[][]{firstSnippet(s)};
+		}
+		else{// done searching, find best snippet
+			s.mode = Scratch.MATCH;
+			rtn = k == 0 ? new int[0][] : bestSnippets(s, k, words);
+		}
+		end(HighlightListener.SNIPPET, t);
+		return rtn;
+	}
+
+	// What weigh() went with, best first
+	protected static final int PHRASES = 0, EXACT = 1, TERMS = 2, NONE = 3;
+
+	// Fills s.Weights from the hits of the latest scan, the best way
+	//	  the query can match, and says which way that was.
+	//
+	protected int weigh(CompiledQuery q, Scratch s){
+		if(searchPhrases(s, q.phrases)){// we can match a phrase, use them
+			searchWords(s, q.rest);// other words in query
+			return PHRASES;
+		}
+		if(useMatches(s, q.exact)){// found an exact match (less commons)
+			if(s.qWords > 1)
+				fillWeights(s, 2);
+			else
+				fillWeights(s, 1);
+			return EXACT;
+		}
+		// can't match, ignore quotes/order
+		return searchWords(s, q.terms) ? TERMS : NONE;
+	}
+
+	// Scans the document a piece at a time, for setEarlyStop() and
+	//	  the budgets, until it's all been read, the best snippet has
+	//	  everything (see saturated()), or a budget runs out.  Leaves
+	//	  the hits of what was read in s, and returns how many words
+	//	  that covers; s.truncated says if a budget left any out.
+	//
+	protected int scanPrefix(CompiledQuery q, Scratch s, int k){
+		s.resetHits(q.needles.length, q.qWords);
+		long deadline = MAX_NANOS > 0 ? System.nanoTime() + MAX_NANOS : 0;
+		int len = s.haystackLen;
+		int limit = MAX_SCAN > 0 ? Math.min(MAX_SCAN, len) : len;
+		int chunk = EARLY_STOP || deadline != 0 ? 4*Math.max(SNIP_SIZE, 256) : limit;
+		int top = q.phrases.length > 0 ? PHRASES : q.exact >= 0 ? EXACT : TERMS;
+		int from = 0, state = 0;
+		while(from < limit){
+			int to = limit - from <= chunk ? limit : from + chunk;
+			state = scan(q, s, from, to, state);
+			from = to;
+			chunk = (int)Math.min(2L*chunk, Integer.MAX_VALUE);
+			if(from == len) return s.docWords;
+			if(EARLY_STOP && saturated(q, s, k, top, s.wordAt(from-1)+1))
+				return s.wordAt(from-1)+1;
+			if(deadline != 0 && System.nanoTime() - deadline >= 0) break;
+		}
+		s.truncated = true;
+		return from == 0 ? 0 : s.wordAt(from-1)+1;
+	}
+
+	// Whether the best snippets (k of them) out of the first 'words'
+	//	  words each hold at least one match of every needle of the
+	//	  query's 'top' kind; see setEarlyStop().
+	//
+	protected boolean saturated(CompiledQuery q, Scratch s, int k, int top, 
+			int words){
+		Arrays.fill(s.Weights, 0, words, 0);
+		if(weigh(q, s) != top) return false;
+		int[][] snips = bestSnippets(s, k, words);
+		if(snips.length < k) return false;
+		for(int[] snip : snips){
+			if(top == PHRASES){
+				for(int p : q.phrases)
+					if(!holds(s, p, snip)) return false;
+				for(int p : q.rest)
+					if(!holds(s, p, snip)) return false;
 			}
-			else{// can't match phrase, ignore quotes
-				if(!searchWords(doc, rmDupes(rmCommon(query)))){
-					return noMatch();
-				}
+			else if(top == EXACT){
+				if(!holds(s, q.exact, snip)) return false;
 			}
+			else
+				for(int p : q.terms)
+					if(!holds(s, p, snip)) return false;
+		}
+		return true;
+	}
+
+	// does any match of needle start inside snip (and fit)?
+	protected boolean holds(Scratch s, int needle, int[] snip){
+		int[] h = s.hits[needle];
+		int c = s.hitCount[needle];
+		int i = Arrays.binarySearch(h, 0, c, snip[0]);// hits are in order
+		if(i < 0) i = -i-1;
+		return i < c && h[i] <= snip[1] - (s.needleWords[needle]-1);
+	}
+
+	// Clock reading for timing a phase, or 0 (without reading the
+	//	  clock) if nobody's listening.
+	//
+	protected long start(){
+		return listener == HighlightListener.NONE ? 0 : System.nanoTime();
+	}
+
+	// Reports the phase that began at t, and returns the time now
+	//	  so the next phase can start from it.
+	//
+	protected long end(int phase, long t){
+		if(listener == HighlightListener.NONE) return 0;
+		long now = System.nanoTime();
+		listener.phase(phase, now - t);
+		return now;
+	}
+
+	// matches of every needle in the latest scan
+	protected int totalHits(CompiledQuery q, Scratch s){
+		int n = 0;
+		for(int i = 0; i < q.needles.length; i++)
+			n += s.hitCount[i];
+		return n;
+	}
+
+	// Highlights every document in docs against the same query,
+	//	  spread over the common fork-join pool.  Results are in
+	//	  the same order as docs.
+	//
+	public List<String> highlightAll(List<String> docs, String query){
+		return highlightAll(docs, compile(query), ForkJoinPool.commonPool());
+	}
+
+	public List<String> highlightAll(List<String> docs, CompiledQuery q, 
+			ForkJoinPool pool){
+		String[] rtn = new String[docs.size()];
+		pool.invoke(new BatchTask(docs, q, rtn, 0, rtn.length));
+		return Arrays.asList(rtn);
+	}
+
+	// Splits [from, to) in half until it's at most BATCH_GRAIN docs,
+	//	  each leaf reusing one Scratch for its documents.
+	//
+	protected class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<String> docs;
+		private final CompiledQuery q;
+		private final String[] out;
+		private final int from, to;
+
+		BatchTask(List<String> docs, CompiledQuery q, String[] out, 
+				int from, int to){
+			this.docs = docs;
+			this.q = q;
+			this.out = out;
+			this.from = from;
+			this.to = to;
 		}
-		else{ // no phrases, but try to match exactly as typed first(less commons)
-			query = rmDupes(rmCommon(rmPunc(query)));
-			if(boyerMooreSearch(doc, query)){// found an exact match
-				if(qWords > 1)
-					fillWeights(2);
-				else
-					fillWeights(1);
+
+		protected void compute(){
+			if(to - from <= BATCH_GRAIN){
+				Scratch s = new Scratch();
+				for(int i = from; i < to; i++)
+					out[i] = highlight_doc(docs.get(i), q, s);
+				return;
 			}
-			else{// search normally
-				if(!searchWords(doc, query)){
-					return noMatch();
-				}
+			int mid = (from + to) >>> 1;
+			invokeAll(new BatchTask(docs, q, out, from, mid),
+					new BatchTask(docs, q, out, mid, to));
+		}
+	}
+
+	// Does all the per-document work up front: splitting, formatting
+	//	  and recording where every word starts.  Returns null for a null or empty doc.
+	//
+	public PreparedDocument prepare(String doc){
+		if(doc==null || doc.length()==0) return null;
+
+		// one pass: split on whitespace, remove punctuation, lowercase,
+		// keeping every original word so the snippet can be rebuilt
+		long t = start();
+		int flags = Tokenizer.KEEP_EMPTY;
+		if(SKIP_STOPWORDS) flags |= Tokenizer.DROP_COMMONS;
+		PreparedDocument rtn = new PreparedDocument(doc, 
+				new Tokenizer(doc, flags, STOPWORDS));
+		end(HighlightListener.PREPARE, t);
+		return rtn;
+	}
+
+	// Same, for a document that's searched once and dropped (the
+	//	  String overloads, highlightAll(), BatchRunner), so it never
+	//	  gets a suffix array: one search doesn't pay for it.
+	//
+	protected PreparedDocument prepareOnce(String doc){
+		PreparedDocument d = prepare(doc);
+		if(d != null) d.once = true;
+		return d;
+	}
+
+	// Same, for a UTF-8 document, which is searched as bytes and
+	//	  never decoded (other than the words of the snippet).  Non-
+	//	  ASCII words match too, see Utf8Tokenizer for what's folded.
+	//	  Offsets (in HighlightSpans) and SNIP_SIZE are in bytes.
+	//	  The buffer is read from its position to its limit, and must
+	//	  not change while the PreparedDocument is in use.
+	//
+	public PreparedDocument prepare(ByteBuffer utf8){
+		if(utf8==null || !utf8.hasRemaining()) return null;
+		long t = start();
+		PreparedDocument rtn = new PreparedDocument(utf8, 
+				new Utf8Tokenizer(utf8, SKIP_STOPWORDS ? STOPWORDS : null));
+		end(HighlightListener.PREPARE, t);
+		return rtn;
+	}
+
+	public PreparedDocument prepare(byte[] utf8){
+		return utf8==null ? null : prepare(ByteBuffer.wrap(utf8));
+	}
+
+	// Does all the per-query work up front: formatting, pulling out
+	//	  every quoted phrase, dropping commons and duplicates,
+	//	  and building one automaton for every needle.
+	//
+	public CompiledQuery compile(String query){
+		long t = start();
+		CompiledQuery rtn = compileQuery(query);
+		end(HighlightListener.COMPILE, t);
+		return rtn;
+	}
+
+	protected CompiledQuery compileQuery(String query){
+		if(query==null || query.length()==0)
+			return new CompiledQuery();
+
+		String formatted = format(query);
+		if(SKIP_STOPWORDS) formatted = rmCommon(formatted);
+		query = format_Q(query);
+
+		// Check to see if query has explicit phrases: "phrase here"
+		ArrayList<String> phrases = new ArrayList<String>();
+		int open = query.indexOf('"'), close;
+		while(open >= 0 && (close = query.indexOf('"', open+1)) >= 0){
+			phrases.add(query.substring(open+1, close));
+			open = query.indexOf('"', close+1);
+		}
+		if(!phrases.isEmpty()){ //found at least one phrase 
+
+			// don't care about punctuation now, remove from query
+			query = rmPunc(query);
+
+			// other words in query
+			String rest = query;
+			String[] phrQueries = new String[phrases.size()];
+			for(int i = 0; i < phrQueries.length; i++){
+				rest = getRest(rest, phrases.get(i));
+				phrQueries[i] = SKIP_STOPWORDS ? rmCommon(phrases.get(i))
+					: phrases.get(i).trim();
 			}
+			rest = rmDupes(rmCommon(rest));
+
+			return new CompiledQuery(formatted, phrQueries, null, 
+					split(rest), split(rmDupes(rmCommon(query))), ALPHA_SIZE, COSTS);
 		}
-		// done searching, find best snippet
-		int[] snip = bestSnippet();
-		return highlight(snip);
+		// no phrases, try exactly as typed first (less commons)
+		query = rmDupes(rmCommon(rmPunc(query)));
+		return new CompiledQuery(formatted, new String[0], query, 
+				new String[0], split(query), ALPHA_SIZE, COSTS);
+	}
+
+	// splits already-formatted words, with "" giving no words at all
+	protected String[] split(String words){
+		Tokenizer t = new Tokenizer(words, 0);
+		String[] rtn = new String[t.words()];
+		for(int i = 0; i < rtn.length; i++)
+			rtn[i] = t.word(i);
+		return rtn;
 	}
 
 	// STRING HELPER FUNCTIONS
-	//		 I realize these aren't the most efficient way to do things, 
-	//		 but they're straightforward and are only called for 
-	//		 preformatting of the inputs
+	//		 All of these are a single pass of Tokenizer over the input;
+	//		 no regexes.
 	//
 
 	// strips the punctuation, capitalization, excess whitespace
 	protected String format(String input){
-		return input.replaceAll("\\p{Punct}+", "")
-			.replaceAll("\\s+", " ").toLowerCase();
+		return new Tokenizer(input, 0).toString();
 	}
 	
 	// same as format, but leaves double quotes
 	protected String format_Q(String input){
-		return input.replaceAll("[\\p{Punct}&&[^\"]]+", "")
-			.replaceAll("\\s+", " ").toLowerCase();
+		return new Tokenizer(input, Tokenizer.KEEP_QUOTES).toString();
 	}
 
 	// strips all ASCII punctuation
 	protected String rmPunc(String input){
-		return input.replaceAll("\\p{Punct}+", "");
+		StringBuilder sb = new StringBuilder(input.length());
+		for(int i = 0; i < input.length(); i++)
+			if(!Tokenizer.isPunct(input.charAt(i)))
+				sb.append(input.charAt(i));
+		return sb.toString();
 	}
 
 
@@ -283,69 +838,85 @@ public class Highlighter {
 	}
 
 
-	// Returns final String(snippet) with tags inserted.
-	//	  Words are tagged according to whether
-	//	  their value in Weights[] > 0.
+	// Writes the snippet words snip[0]..snip[1] to out, single
+	//	  spaced, with tags inserted.  Words are tagged according 
+	//	  to whether their value in Weights[] > 0 (or all of them,
+	//	  or none, depending on s.mode).
 	//	 
-	protected String highlight(int[] snip){
+	protected void highlight(Scratch s, int[] snip, Appendable out) 
+			throws IOException {
 		boolean inProgress = false;
-		String snippet = "";
-		String strt = "[[HIGHLIGHT]]";
-		String end = "[[ENDHIGHLIGHT]]";
-
-		for(int i = snip[0]; i <=snip[1]; i++){
-			if(Weights[i]!=0)
-				if(inProgress)
-					snippet += " " +origDocA[i];
-				else{
-					snippet += " " +strt+origDocA[i];
-					inProgress=true;
-				}
-			else 
-				if(inProgress){
-					snippet = snippet.trim();
-					snippet += end + " " +origDocA[i]+ " ";
-					inProgress=false;
-				}
-				else
-					snippet += " " +origDocA[i]+ " ";
+		for(int i = snip[0]; i <= snip[1]; i++){
+			boolean hit = isHit(s, i);
+			if(inProgress && !hit){
+				out.append(END_TAG);
+				inProgress = false;
+			}
+			if(i > snip[0]) out.append(' ');
+			if(hit && !inProgress){
+				out.append(START_TAG);
+				inProgress = true;
+			}
+			if(s.originalB != null)// decode just this word
+				out.append(StandardCharsets.UTF_8.decode(s.originalB.duplicate()
+						.limit(s.origEnd[i]).position(s.origStart[i])));
+			else
+				out.append(s.original, s.origStart[i], s.origEnd[i]);
 		}
-		
 		if(inProgress)// need an end-highlight
-			snippet += end;
-		return snippet.replaceAll("\\s+", " ").trim();
+			out.append(END_TAG);
+	}
+
+	// Same walk as highlight(), but only records offsets
+	protected HighlightSpans spans(Scratch s, int[] snip){
+		HighlightSpans rtn = new HighlightSpans(s.mode != Scratch.NO_MATCH);
+		if(snip[1] < snip[0]) return rtn;
+		rtn.start = s.origStart[snip[0]];
+		rtn.end = s.origEnd[snip[1]];
+		boolean inProgress = false;
+		for(int i = snip[0]; i <= snip[1]; i++){
+			boolean hit = isHit(s, i);
+			if(hit && !inProgress)
+				rtn.add(s.origStart[i]);
+			if(inProgress && !hit)
+				rtn.add(s.origEnd[i-1]);
+			inProgress = hit;
+		}
+		if(inProgress)
+			rtn.add(s.origEnd[snip[1]]);
+		return rtn;
+	}
+
+	protected boolean isHit(Scratch s, int i){
+		return s.mode == Scratch.ALL 
+			|| (s.mode == Scratch.MATCH && s.Weights[i] != 0);
 	}
 
 	// Returns the first possible snippet.
-	//	  Called when there is either no match
-	//	  or no query.  In reality this should never
-	//	  be called, but here for testing.
+	//	  Used when there is either no match
+	//	  or no query.
 	//	 
-	protected String noMatch(){
-		String rtn = "";
-		String temp = "";
-		int i, length;
-		i = length = 0;
-		temp = origDocA[i];
-		rtn += temp + " ";
+	protected int[] firstSnippet(Scratch s){
+		return firstSnippet(s, SNIP_SIZE);
+	}
 
-		while(length + temp.length() + 1 <= SNIP_SIZE && i < docWords-1){
-			temp = origDocA[++i];
-			rtn += temp + " ";
+	protected int[] firstSnippet(Scratch s, int size){
+		int i = 0;
+		int length = s.origEnd[0] - s.origStart[0] + 1;
+		while(i < s.docWords-1 
+				&& length + s.origEnd[i+1] - s.origStart[i+1] + 1 <= size){
+			i++;
+			length += s.origEnd[i] - s.origStart[i] + 1;
 		}
-		return rtn.trim();
+		return new int[]{0, i};
 	}
 
 
-	// Method for removing common words (contained in COMMONS[])
-	//	  from a given string.
+	// Method for removing common words (contained in STOPWORDS,
+	//	  COMMONS by default) from a given string.
 	//	 
 	protected String rmCommon(String input){
-		String temp = format(input);
-		for(String x : COMMONS){
-			temp = temp.replaceAll("\\b" +x+ "\\b", "");
-		}
-		return temp.replaceAll("\\s+", " ").trim();
+		return new Tokenizer(input, Tokenizer.DROP_COMMONS, STOPWORDS).toString();
 	}
 
 
@@ -354,16 +925,17 @@ public class Highlighter {
 	//	  String.
 	//	 
 	protected String rmDupes(String input){
-		String output = "";
-		String[] temp = format(input).split("\\s+");
-		Vector<String> vec = new Vector<String>(temp.length);
-		for(String x : temp){
-			if(!vec.contains(x)){
-				vec.add(x);
-				output += x + " ";
+		Tokenizer t = new Tokenizer(input, 0);
+		HashSet<String> seen = new HashSet<String>();
+		StringBuilder output = new StringBuilder(t.length);
+		for(int i = 0; i < t.words(); i++){
+			String x = t.word(i);
+			if(seen.add(x)){
+				if(output.length() > 0) output.append(' ');
+				output.append(x);
 			}
 		}
-			return output.trim();
+		return output.toString();
 	}
 
 	// END STRING HELPER FUNCTIONS
@@ -373,199 +945,240 @@ public class Highlighter {
 
 
 	//  Take the data gathered from a 
-	//	boyerMooreSearch (currently in matchesV) and add it to the 
+	//	scan (currently in matches) and add it to the 
 	//	'relevance values' array, Weights[]
 	//
-	protected void fillWeights(int weight){
-		Integer k, j, index, num;
-		for(Integer[] i : matchesV){
-			j = i[0];
-			num = i[1];
-			index = indexMap.get(j);
-			Weights[index] += weight;
-			for(k = 0; k < num-1; k++){
-				j += origDocA[index+k].length()+1;
-				Weights[indexMap.get(j)] += weight;
+	protected void fillWeights(Scratch s, int weight){
+		int index;
+		for(int i = 0; i < s.matchCount; i++){
+			index = s.matches[i];
+			s.Weights[index] += weight;
+			for(int k = 0; k < s.qWords-1; k++){
+				int next = s.nextWord(index);
+				if(SKIP_STOPWORDS)// skipped stopwords were part of it too
+					while(++index < next) s.Weights[index] += weight;
+				index = next;
+				s.Weights[index] += weight;
 			}
 		}
 	}
 
 
 	//  Called after Weights[] is filled, and searching is done.
-	//	    Calculates the highest-weighted snippet of
-	//	    size SNIP_SIZE (plus punctuation)
-	//			and returns the corresponding indices of the original array
-	//
-	protected int[] bestSnippet(){
-		int[] rtn = new int[2];
-		String temp; 
-		int sum, length, i, head, tail;
-		i = sum = length = head = tail = 0;
-		int max =-1;
-		temp = searchDocA[i];
-		// initial loop/sum, first possible snippet
-		while(length + temp.length() + 1 <= SNIP_SIZE && i < docWords){
-			sum += Weights[i];
-			length += temp.length() + 1;
-			rtn[1] = i++;
-			if(i < docWords)
-				temp = searchDocA[i];
-		}
-		head = rtn[1];
-		max = sum;
-		
-		while(i < docWords){
-			do{// shift 'queue'
-				sum -= Weights[tail];
-				length -= searchDocA[tail].length() +1;
-				tail++;
-			}while(length + temp.length()+1 > SNIP_SIZE);
-		
-
-			sum += Weights[i];
-			length += temp.length() + 1;
-			head = i++;
-			if(sum > max){
-				rtn[0] = tail;
-				rtn[1] = head;
-			}
-			if(i < docWords)
-			temp = searchDocA[i];
+	//	    Calculates the k highest-weighted snippets of
+	//	    size SNIP_SIZE (plus punctuation) that don't overlap,
+	//	    out of the first 'words' words, and returns the
+	//	    corresponding indices of the original array, in order.
+	//	    k = 1 is the sliding window (see SnippetWindow); for
+	//	    more, see topSnippets().
+	//
+	protected int[][] bestSnippets(Scratch s, int k, int words){
+		if(k > 1){
+			int[][] rtn = topSnippets(s, k, words);
+			if(rtn.length > 0) return rtn;// else nothing weighs anything
 		}
-		return rtn;
+		SnippetWindow w = new SnippetWindow(SNIP_SIZE, false);
+		for(int i = 0; i < words; i++)
+			w.add(i, s.wordLen(i), s.Weights[i]);
+		w.finish();
+		return new int[][]{{(int)w.bestTail(), (int)w.bestHead()}};
 	}
 
-	// searches the doc on each individual term remaining.
-	// fills in weights if necessary.
-	protected boolean searchWords(String doc, String rest){
-		String[] words = rest.split("\\s+");
-		boolean isMatched = false;
-		for(String word : words){
-			if(boyerMooreSearch(doc, word)){
-				 fillWeights(1);
-				 isMatched = true;
-			}
+	// Up to k windows that don't overlap, with the highest total
+	//	  weight between them, in document order.  Any window can be
+	//	  trimmed to its first and last weighted words without losing
+	//	  anything, so only those are tried: over the m weighted words,
+	//	  best[c][j] is the most c windows can hold out of the first j
+	//	  of them, the last window either leaving word j-1 out or
+	//	  ending there, from any start it still fits with.  That's
+	//	  O(k m w) for w weighted words per window, in one pass.  Ties
+	//	  go to the windows spanning the fewest words, so hits close
+	//	  together stay together, then to the earliest.  A window
+	//	  never holds nothing, so there may be fewer than k.
+	//
+	//	  Each chosen window is then grown out into the words around
+	//	  it, a word on the right and one on the left in turn, until
+	//	  no more fit (or it would run into the next one).
+	//
+	protected int[][] topSnippets(Scratch s, int k, int words){
+		int[] len = new int[words+1];// prefix sums of (length + 1)
+		int m = 0;
+		for(int i = 0; i < words; i++){
+			len[i+1] = len[i] + s.wordLen(i) + 1;
+			if(s.Weights[i] > 0) m++;
 		}
-		return isMatched;
-	}
+		int[] at = new int[m], sum = new int[m+1];
+		m = 0;
+		for(int i = 0; i < words; i++)
+			if(s.Weights[i] > 0){
+				at[m] = i;
+				sum[m+1] = sum[m] + s.Weights[i];
+				m++;
+			}
 
-	// initializes the map from:
-	// (index in doc)=(index in array)
-	protected void indexMap_init(){
-		int temp1 = 0;
-		int temp2 = 0;
-		for(String str : searchDocA){
-			indexMap.put(temp1, temp2);
-			temp1 += str.length() + 1;
-			temp2++;
+		// weight in the high half, minus words spanned in the low
+		long[][] best = new long[k+1][m+1];
+		int[][] from = new int[k+1][m+1];// start of the last window, or -1
+		for(int c = 1; c <= k; c++){
+			from[c][0] = -1;
+			for(int j = 1; j <= m; j++){
+				long b = Long.MIN_VALUE;
+				int bi = -1;
+				for(int i = j-1; i >= 0; i--){
+					if(i < j-1 && len[at[j-1]+1] - len[at[i]] > SNIP_SIZE) break;
+					long v = best[c-1][i] + ((long)(sum[j] - sum[i]) << 32)
+						- (at[j-1] - at[i] + 1);
+					if(v > b){
+						b = v;
+						bi = i;
+					}
+				}
+				if(best[c][j-1] >= b){
+					best[c][j] = best[c][j-1];
+					from[c][j] = -1;
+				}
+				else{
+					best[c][j] = b;
+					from[c][j] = bi;
+				}
+			}
 		}
-	}
 
+		// walk back for the windows, last first
+		ArrayList<int[]> rtn = new ArrayList<int[]>();
+		for(int c = k, j = m; c > 0 && j > 0;){
+			int i = from[c][j];
+			if(i < 0){
+				j--;
+				continue;
+			}
+			rtn.add(0, new int[]{at[i], at[j-1]});
+			j = i;
+			c--;
+		}
 
+		// fill out the space around each
+		for(int j = 0; j < rtn.size(); j++){
+			int[] w = rtn.get(j);
+			int lo = j == 0 ? 0 : rtn.get(j-1)[1] + 1;
+			int hi = j+1 == rtn.size() ? words-1 : rtn.get(j+1)[0] - 1;
+			boolean grew = true;
+			while(grew){
+				grew = false;
+				if(w[1] < hi && len[w[1]+2] - len[w[0]] <= SNIP_SIZE){
+					w[1]++;
+					grew = true;
+				}
+				if(w[0] > lo && len[w[1]+1] - len[w[0]-1] <= SNIP_SIZE){
+					w[0]--;
+					grew = true;
+				}
+			}
+		}
+		return rtn.toArray(new int[rtn.size()][]);
+	}
 
-	//--MY IMPLEMENTATION OF THE BOYER-MOORE ALGORITHM.--
+	// The best snippet for each of several sizes at once, out of the
+	//	  first 'words' words: the same windows bestSnippets() picks with
+	//	  SNIP_SIZE set to each size (see SnippetWindow).  With prefix
+	//	  sums of the word lengths and Weights, any window's length and
+	//	  weight is one subtraction, so a single pass over the words
+	//	  moves every size's window along together.
+	//
+	protected int[][] bestSnippets(Scratch s, int[] sizes, int words){
+		int[] len = new int[words+1], sum = new int[words+1];
+		for(int i = 0; i < words; i++){
+			len[i+1] = len[i] + s.wordLen(i) + 1;
+			sum[i+1] = sum[i] + s.Weights[i];
+		}
+		int m = sizes.length;
+		int[] head = new int[m];// end (exclusive) of each size's window
+		int[] best = new int[m];
+		int[][] rtn = new int[m][];
+		Arrays.fill(best, -1);
+		for(int j = 0; j < m; j++)
+			rtn[j] = new int[]{0, -1};
+		for(int t = 0; t < words; t++){
+			for(int j = 0; j < m; j++){
+				int h = Math.max(head[j], t+1);// a word too long fits alone
+				while(h < words && len[h+1] - len[t] <= sizes[j]) h++;
+				head[j] = h;
+				// only maximal windows, ones the word before won't fit in
+				if(t > 0 && len[h] - len[t-1] <= sizes[j]) continue;
+				if(sum[h] - sum[t] > best[j]){// earliest on ties
+					best[j] = sum[h] - sum[t];
+					rtn[j][0] = t;
+					rtn[j][1] = h-1;
+				}
+			}
+		}
+		return rtn;
+	}
 
-	
-	// Actual searching function, implementing the 
-	//		Boyer-Moore searching algorithm.
-	//		Returns true if a match was found, false otherwise.
+	// Weights every phrase that matched, doubly.  Phrases that
+	//	  didn't match add nothing; returns true if any did.
 	//
-	protected boolean boyerMooreSearch(String doc, String query) {
+	protected boolean searchPhrases(Scratch s, int[] phrases){
 		boolean isMatched = false;
-		qWords = query.split("\\s+").length;
-		needleA = query.toCharArray();
-		haystackA = doc.toCharArray();
-		needleLen = needleA.length;
-		haystackLen = haystackA.length;
-		
-		badCharA = new int[ALPHA_SIZE];
-		goodSuffA = new int[needleLen + 1];
-		suff = new int[needleLen + 1];
-		
-		// calculate skip tables
-		badCharA_init();
-		goodSuffA_init();
-
-		// to prevent resizing costs, set size
-		matchesV = new Vector<Integer[]>(docWords);
-		int i, j, k;
-
-		i = 0;
-		while(i <= haystackLen - needleLen){
-			j = needleLen-1;
-
-			// loop from right to left, while chars match
-			while(j >= 0 && needleA[j]==haystackA[i+j]) j--;
-			
-			if(j < 0){// isMatched whole pattern, add to matches
+		for(int phrase : phrases){
+			if(useMatches(s, phrase)){
+				fillWeights(s, 2);
 				isMatched = true;
-				// START UGLY HACK
-				// if we have a partial-word match, find index of word-start
-				Integer[] match = new Integer[2];
-				match[1] = new Integer(qWords);
-				match[0] =  new Integer(i);
-				if(indexMap.containsKey(match[0]))
-					 matchesV.add(match);
-				else{
-					k = i;
-					while(!indexMap.containsKey((Integer)k))	k--;
-					match[0] = new Integer(k);
-					matchesV.add(match);
-				}
-				// END UGLY HACK
-				// increment search to next possible match
-				i += goodSuffA[0];
-			}
-			else{// didn't match whole pattern, so jump by largest skip
-				i += Math.max(goodSuffA[j+1], 
-											j - badCharA[haystackA[i+j]]);
 			}
 		}
 		return isMatched;
 	}
 
-	// Easier of the two table calculations, makes the BM structure commonly
-	//	  referred to as the 'bad character shift' table.
-	//	  Works exactly as described on Wikipedia. (where I got it!)
-	//	 
-	protected void badCharA_init(){
-
-		for(int i = 0; i < ALPHA_SIZE; i++)
-			badCharA[i] = -1;
-
-		for(int j = 0; j< needleLen; j++)
-			badCharA[ needleA[j] ] = j;
-	}
-
-	//  More complicated of the two table initializations.
-	//	  Where Boyer-Moore gets its speed.
-	//	 	Fills goodSuffA[], a table that holds the following:
-	//	 	On a mismatch, goodSuffA[j] contains
-	//	  how far ahead we can jump in our search, given that
-	//	  we had matched j chars of our query before failing.
-	//
-	protected void goodSuffA_init(){
-		// suff[i] contains the start index of the widest suffix border
-		// of the pattern starting at i
-		int i=needleLen, j=needleLen+1;
-    suff[i]=j;
-    while (i>0)
-			{
-        while (j<=needleLen && needleA[i-1]!=needleA[j-1])
-					{
-            if (goodSuffA[j]==0) goodSuffA[j]=j-i;
-            j=suff[j];
-					}
-        i--; j--;
-       suff[i]=j;
+	// searches the doc on each individual term remaining.
+	// fills in weights if necessary.
+	protected boolean searchWords(Scratch s, int[] words){
+		boolean isMatched = false;
+		for(int word : words){
+			if(useMatches(s, word)){
+				 fillWeights(s, 1);
+				 isMatched = true;
 			}
+		}
+		return isMatched;
+	}
 
-		j = suff[0];
-		for(i = 0; i <= needleLen; i++){
-			if(goodSuffA[i]==0)
-				goodSuffA[i] = j;
-			if(i==j)
-				j = suff[j];
+	// Runs the query's automaton over haystackA once, sorting
+	//	  the matches into one buffer per needle (see Scratch.hits).
+	//	  If MatcherCosts says separate passes are cheaper, each
+	//	  needle gets its own NeedleScanner instead.
+	//
+	protected void scan(CompiledQuery q, Scratch s){
+		s.resetHits(q.needles.length, q.qWords);
+		scan(q, s, 0, s.haystackLen, 0);
+	}
+
+	// Same, for just [from, to) of the haystack, picking up in the
+	//	  automaton state the piece before it ended in (0 to begin
+	//	  with).  Returns the state to pick up from next.
+	//
+	protected int scan(CompiledQuery q, Scratch s, int from, int to, int state){
+		if(s.haystackM != null)
+			return q.utf8().scan(s.haystackM, from, to, state, s);
+		if(s.haystackB != null)
+			return q.utf8().scan(s.haystackB, from, to, state, s);
+		if(q.scanners != null){// a pass per needle, no state to keep
+			for(int p = 0; p < q.scanners.length; p++){
+				int back = q.needles[p].length()-1;// for a match across from
+				q.scanners[p].scan(s.haystackA, Math.max(0, from - back), to, p, s);
+			}
+			return 0;
 		}
+		return q.automaton().scan(s.haystackA, from, to, state, s);
+	}
+
+	// Points matches/qWords at the given needle's matches.
+	//	  Returns true if it matched at all.
+	//
+	protected boolean useMatches(Scratch s, int needle){
+		if(needle < 0) return false;
+		s.matches = s.hits[needle];
+		s.matchCount = s.hitCount[needle];
+		s.qWords = s.needleWords[needle];
+		return s.matchCount > 0;
 	}
 }
@@ -0,0 +1,49 @@
+package herrick.test;
+
+import java.util.*;
+
+// Boyer-Moore-Horspool: Boyer-Moore with only the bad character
+// table, keyed on the haystack char under the needle's last char.
+// Half the set-up of BoyerMoore and a simpler inner loop; for long
+// needles the bad character skip is nearly always the one that wins
+// anyway.
+//
+// Chars outside the alphabet skip the whole needle; a needle that
+// contains one never matches.  Immutable, may be shared freely.
+//
+public class Horspool implements NeedleScanner {
+
+	protected final char[] needleA;
+	protected final int needleLen; // 0 if it can never match
+
+	// how far to move on, by the char under the needle's last
+	protected final int[] shift;
+
+	public Horspool(String needle, int alphaSize){
+		needleA = needle.toCharArray();
+		boolean in = needleA.length > 0;
+		for(char c : needleA) in &= c < alphaSize;
+		needleLen = in ? needleA.length : 0;
+
+		shift = new int[alphaSize];
+		Arrays.fill(shift, needleLen);
+		for(int j = 0; j < needleLen-1; j++)
+			shift[needleA[j]] = needleLen-1 - j;
+	}
+
+	public void scan(char[] haystackA, int from, int to, int pattern,
+			AhoCorasick.Hits out){
+		if(needleLen == 0) return;
+		int last = needleLen-1;
+		char lastC = needleA[last];
+		for(int i = from; i <= to - needleLen; ){
+			char c = haystackA[i+last];
+			if(c == lastC){
+				int j = last-1;
+				while(j >= 0 && haystackA[i+j] == needleA[j]) j--;
+				if(j < 0) out.hit(pattern, i);
+			}
+			i += c < shift.length ? shift[c] : needleLen;
+		}
+	}
+}
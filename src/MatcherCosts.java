@@ -0,0 +1,243 @@
+package herrick.test;
+
+import java.util.*;
+
+// Cost model behind how CompiledQuery looks for its needles: what each
+// way of finding one needle costs (ns per haystack char, by needle
+// length, plus ns to build it), and what one AhoCorasick pass costs
+// (ns per char, by number of needles).  For each query, plan() picks
+// the cheapest scanner for every needle and then decides between
+// scanning for each of them separately and one pass of the automaton.
+// Every matcher reports the same hits, so this only changes speed.
+//
+// The numbers in BUILT_IN came from calibrate() on a typical x86-64
+// box.  To measure this machine instead, run
+//
+//	 java herrick.test.MatcherCosts
+//
+// and copy its numbers into BUILT_IN, or start with
+// -Dherrick.calibrate=true to calibrate once at start-up (~0.5s), or
+// hand Highlighter.setMatcherCosts() a calibrate() of your own.
+//
+// Immutable, may be shared freely.
+//
+public class MatcherCosts {
+
+	// ways to find a single needle
+	public static final int SHORT = 0;       // ShortScanner, no tables
+	public static final int HORSPOOL = 1;    // Horspool, bad char table
+	public static final int BOYER_MOORE = 2; // BoyerMoore, both tables
+	public static final int VECTOR = 3;      // VectorScanner, if it's there
+	protected static final int KINDS = 4;
+	protected static final String[] KIND_NAMES = {"short", "horspool",
+		"boyer-moore", "vector"};
+
+	// needle lengths 1, 2, 3, 4-7, 8-15, 16+ (and what calibrate() uses
+	//	  for each), and needle counts 1, 2-3, 4-7, 8-15, 16+
+	protected static final int[] LENGTHS = {1, 2, 3, 4, 8, 16};
+	protected static final int[] SAMPLE_LENGTHS = {1, 2, 3, 5, 10, 20};
+	protected static final int[] COUNTS = {1, 2, 4, 8, 16};
+	protected static final int[] SAMPLE_COUNTS = {1, 3, 5, 10, 20};
+
+	// A needle's set-up is paid once per query, its scan once per
+	//	  document; this is how long we guess documents are when
+	//	  weighing one against the other.
+	protected static final int DOC_CHARS = 4096;
+
+	protected final double[][] perChar;  // [kind][length], NaN if n/a
+	protected final double[] setup;      // [kind], ns for an 8 char needle
+	protected final double[] automaton;  // [count], ns per char
+
+	protected static final MatcherCosts BUILT_IN = new MatcherCosts(
+		new double[][]{
+			{1.20, 2.40, 1.40, 1.30, 1.40, 1.30},
+			{4.90, 2.50, 2.00, 1.20, 0.60, 0.40},
+			{7.20, 3.40, 2.30, 1.50, 0.90, 0.55},
+			{2.00, 0.85, 0.85, 0.85, 0.85, 0.85}},
+		new double[]{60, 140, 1200, 70},
+		new double[]{3.50, 3.50, 3.50, 3.50, 3.60});
+
+	public static final MatcherCosts DEFAULT =
+		Boolean.getBoolean("herrick.calibrate") ? calibrate() : BUILT_IN;
+
+	public MatcherCosts(double[][] perChar, double[] setup, double[] automaton){
+		this.perChar = perChar;
+		this.setup = setup;
+		this.automaton = automaton;
+	}
+
+	// what finding a needle of length len with 'kind' costs per char,
+	//	  set-up included; infinite if we can't
+	public double cost(int kind, int len){
+		double c = perChar[kind][lengthBucket(len)];
+		if(Double.isNaN(c) || (kind == VECTOR && CompiledQuery.VECTOR == null))
+			return Double.POSITIVE_INFINITY;
+		return c + setup[kind] / DOC_CHARS;
+	}
+
+	// the cheapest way to find a needle of length len alone
+	public int kind(int len){
+		int best = SHORT;
+		for(int k = 1; k < KINDS; k++)
+			if(cost(k, len) < cost(best, len)) best = k;
+		return best;
+	}
+
+	// One scanner per needle, if scanning for each one separately is
+	//	  cheaper than one pass of the automaton over them all; null if
+	//	  it isn't.
+	//
+	public NeedleScanner[] plan(String[] needles, int alphaSize){
+		if(needles.length == 0) return null;
+		double separate = 0;
+		for(String n : needles)
+			separate += cost(kind(n.length()), n.length());
+		if(separate >= automaton[countBucket(needles.length)]) return null;
+		NeedleScanner[] rtn = new NeedleScanner[needles.length];
+		for(int i = 0; i < needles.length; i++)
+			rtn[i] = scanner(needles[i], alphaSize);
+		return rtn;
+	}
+
+	// the cheapest scanner for needle alone
+	public NeedleScanner scanner(String needle, int alphaSize){
+		return newScanner(kind(needle.length()), needle, alphaSize);
+	}
+
+	protected static NeedleScanner newScanner(int kind, String needle, int alphaSize){
+		switch(kind){
+			case SHORT: return new ShortScanner(needle, alphaSize);
+			case HORSPOOL: return new Horspool(needle, alphaSize);
+			case VECTOR:
+				if(CompiledQuery.VECTOR != null){
+					try{
+						return (NeedleScanner)CompiledQuery.VECTOR.newInstance(needle, alphaSize);
+					}catch(Exception e){
+						// Boyer-Moore instead
+					}
+				}
+				return new BoyerMoore(needle, alphaSize);
+			default: return new BoyerMoore(needle, alphaSize);
+		}
+	}
+
+	protected static int lengthBucket(int len){
+		int b = 0;
+		while(b+1 < LENGTHS.length && len >= LENGTHS[b+1]) b++;
+		return b;
+	}
+
+	protected static int countBucket(int n){
+		int b = 0;
+		while(b+1 < COUNTS.length && n >= COUNTS[b+1]) b++;
+		return b;
+	}
+
+	// CALIBRATION
+
+	// Times every matcher on this machine: each scanner at each needle
+	//	  length, the automaton at each needle count, over 64K chars of
+	//	  made-up prose, best of many runs.
+	//
+	public static MatcherCosts calibrate(){
+		Random r = new Random(42);
+		char[] text = sampleText(r, 1 << 16);
+		double[][] perChar = new double[KINDS][LENGTHS.length];
+		double[] setup = new double[KINDS];
+		for(int k = 0; k < KINDS; k++){
+			if(k == VECTOR && CompiledQuery.VECTOR == null){
+				Arrays.fill(perChar[k], Double.NaN);
+				setup[k] = Double.NaN;
+				continue;
+			}
+			for(int b = 0; b < LENGTHS.length; b++){
+				String needle = sample(r, text, SAMPLE_LENGTHS[b]);
+				perChar[k][b] = nsPerChar(newScanner(k, needle, 128), null, text);
+			}
+			setup[k] = setupNs(k, sample(r, text, 8));
+		}
+		double[] automaton = new double[COUNTS.length];
+		for(int b = 0; b < COUNTS.length; b++){
+			String[] needles = new String[SAMPLE_COUNTS[b]];
+			for(int i = 0; i < needles.length; i++)
+				needles[i] = sample(r, text, 3 + r.nextInt(6));
+			automaton[b] = nsPerChar(null, new AhoCorasick(needles, 128), text);
+		}
+		return new MatcherCosts(perChar, setup, automaton);
+	}
+
+	private static final int RUNS = 40;
+
+	// keeps the JIT from dropping the scans
+	protected static volatile long sink;
+
+	private static double nsPerChar(NeedleScanner ns, AhoCorasick ac, char[] text){
+		final long[] n = new long[1];
+		AhoCorasick.Hits count = new AhoCorasick.Hits(){
+			public void hit(int pattern, int start){
+				n[0] += start;
+			}
+		};
+		long best = Long.MAX_VALUE;
+		for(int run = 0; run < RUNS; run++){
+			long t = System.nanoTime();
+			if(ac != null) ac.scan(text, text.length, count);
+			else ns.scan(text, 0, text.length, 0, count);
+			best = Math.min(best, System.nanoTime() - t);
+		}
+		sink += n[0];
+		return (double)best / text.length;
+	}
+
+	private static double setupNs(int kind, String needle){
+		int batch = 2000;
+		long best = Long.MAX_VALUE;
+		for(int run = 0; run < 10; run++){
+			long t = System.nanoTime();
+			for(int i = 0; i < batch; i++)
+				sink += newScanner(kind, needle, 128).hashCode();
+			best = Math.min(best, System.nanoTime() - t);
+		}
+		return (double)best / batch;
+	}
+
+	// lowercase words of 1-10 letters, common letters more often
+	private static char[] sampleText(Random r, int len){
+		String letters = "eeeeettttaaaooiinnsshhrrdlcumwfgypbvk";
+		char[] text = new char[len];
+		int i = 0;
+		while(i < len){
+			for(int w = 1 + r.nextInt(10); w > 0 && i < len; w--)
+				text[i++] = letters.charAt(r.nextInt(letters.length()));
+			if(i < len) text[i++] = ' ';
+		}
+		return text;
+	}
+
+	// a needle that's somewhere in text
+	private static String sample(Random r, char[] text, int len){
+		return new String(text, r.nextInt(text.length - len), len);
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder("ns/char by needle length");
+		for(int b = 0; b < LENGTHS.length; b++)
+			sb.append(b == 0 ? "  " : ", ").append(LENGTHS[b])
+				.append(b+1 < LENGTHS.length ? "" : "+");
+		sb.append('\n');
+		for(int k = 0; k < KINDS; k++){
+			sb.append(String.format("  %-12s", KIND_NAMES[k]));
+			for(double c : perChar[k]) sb.append(String.format(" %5.2f", c));
+			sb.append(String.format("   set-up %.0f ns%n", setup[k]));
+		}
+		sb.append(String.format("%-14s", "  automaton"));
+		for(double c : automaton) sb.append(String.format(" %5.2f", c));
+		sb.append("   (1, 2, 4, 8, 16+ needles)\n");
+		return sb.toString();
+	}
+
+	public static void main(String[] args){
+		calibrate();// once to warm up
+		System.out.print(calibrate());
+	}
+}
@@ -0,0 +1,21 @@
+package herrick.test;
+
+// Finds every occurrence of a single needle, for queries where
+// scanning for each needle on its own beats one AhoCorasick pass.
+// Which scanner a needle gets (ShortScanner, Horspool, BoyerMoore, or
+// VectorScanner when jdk.incubator.vector is available), and whether
+// the query is scanned needle by needle at all, is MatcherCosts.plan()'s
+// call; see Highlighter.setMatcherCosts().
+//
+// Every occurrence is reported, overlapping ones included, in order,
+// just as AhoCorasick.scan() would report them.
+//
+public interface NeedleScanner {
+
+	// Reports each occurrence in haystack[from..to) as 'pattern'.
+	//	  To scan a text a piece at a time, start each piece
+	//	  needle-length-1 chars before the end of the last one.
+	//
+	void scan(char[] haystackA, int from, int to, int pattern,
+			AhoCorasick.Hits out);
+}
@@ -0,0 +1,417 @@
+package herrick.test;
+
+import java.util.*;
+
+// Saved queries, highlighted against one incoming document at a time
+// (alerts: every saved search that matches gets its snippet).  Rather
+// than a highlight_doc() per saved query, each its own scan, the
+// needles of the saved queries go into a few shared automata, and each
+// document is prepared once and scanned once per automaton.  Only the
+// queries one of whose needles hit are then weighed and highlighted,
+// from the hits of those passes; the rest cost nothing.
+//
+// Snippets are the same as h.highlight_doc() gives for the query.  A
+// query none of whose needles occur is left out (unless the document
+// is the query itself), not given the no-match snippet highlight_doc()
+// falls back to.
+//
+// An automaton is a table of 4 bytes per (state, distinct char), so
+// the queries are cut into shards of consecutive queries whose table
+// stays under maxCells each, however many there are: one shard's
+// table can't overflow, and adding a query only rebuilds its own
+// shard (for a new query, the last one) on the next percolate().
+// weight() says what the tables take.
+//
+// Add queries from one thread at a time; percolating is safe from any
+// number of threads, each with its own Scratch, once they're all in.
+//
+//	 Percolator p = new Percolator(h);
+//	 p.add(id, query);  // for every saved query
+//	 Map<String, String> snippets = p.percolate(doc);
+//
+public class Percolator {
+
+	// default table size per shard: 4M cells, 16MB
+	public static final long SHARD_CELLS = 1L << 22;
+
+	protected final Highlighter h;
+	protected final long maxCells;
+
+	// the saved queries, in the order they were added
+	protected final ArrayList<String> ids = new ArrayList<String>();
+	protected final ArrayList<CompiledQuery> queries = new ArrayList<CompiledQuery>();
+	protected final HashMap<String, Integer> byId = new HashMap<String, Integer>();
+
+	// shards as of the last percolate(), in query order, and which of
+	//	  them have had a query replaced since
+	protected final ArrayList<Shard> shards = new ArrayList<Shard>();
+	protected final BitSet dirty = new BitSet();
+
+	// what percolate() works from; rebuilt after any add() (see
+	//	  snapshot())
+	private volatile Snapshot snapshot;
+
+	// one Pass per thread, for the scans
+	private final ThreadLocal<Pass> passes = new ThreadLocal<Pass>(){
+		protected Pass initialValue(){
+			return new Pass();
+		}
+	};
+
+	public Percolator(Highlighter h){
+		this(h, SHARD_CELLS);
+	}
+
+	public Percolator(Highlighter h, long maxCells){
+		this.h = h;
+		this.maxCells = maxCells;
+	}
+
+	// Saves query under id, replacing whatever was there
+	public void add(String id, String query){
+		add(id, h.compile(query));
+	}
+
+	public synchronized void add(String id, CompiledQuery q){
+		Integer i = byId.get(id);
+		if(i != null){
+			queries.set(i, q);
+			for(int k = 0; k < shards.size(); k++)
+				if(shards.get(k).from <= i && i < shards.get(k).to) dirty.set(k);
+		}
+		else{
+			byId.put(id, queries.size());
+			ids.add(id);
+			queries.add(q);
+		}
+		snapshot = null;
+	}
+
+	// number of saved queries
+	public synchronized int size(){
+		return queries.size();
+	}
+
+	// Rough size in bytes of the automata
+	public long weight(){
+		long w = 0;
+		for(Shard sh : snapshot().shards)
+			w += sh.weight();
+		return w;
+	}
+
+	// Queries [from, to), with every distinct needle among them, one
+	//	  automaton over those, and which query needle is which shard
+	//	  one.  'full' if the next query didn't fit.
+	//
+	protected static class Shard {
+		final int from, to;
+		final boolean full;
+		final String[] needles;
+		final int[] qWords;
+		final AhoCorasick automaton;
+		final int[][] local;  // [query - from][its needle] -> shard needle
+		final int[][] users;  // [shard needle] -> queries that have it
+
+		// queries by length of their formatted text, for the
+		//	  doc==query case, which needn't have any hits (a query of
+		//	  all stopwords): the document is only compared with the
+		//	  few that are as long as it is
+		final HashMap<Integer, int[]> byLength;
+		private volatile HashMap<Integer, int[]> byLengthUtf8;
+		private volatile AhoCorasick utf8Automaton;
+		private final CompiledQuery[] qs;
+
+		Shard(CompiledQuery[] all, int from, int to, boolean full, int alphaSize){
+			this.from = from;
+			this.to = to;
+			this.full = full;
+			qs = Arrays.copyOfRange(all, from, to);
+			HashMap<String, Integer> index = new HashMap<String, Integer>();
+			ArrayList<String> found = new ArrayList<String>();
+			ArrayList<Integer> words = new ArrayList<Integer>();
+			byLength = new HashMap<Integer, int[]>();
+			local = new int[qs.length][];
+			int[] count = new int[16];
+			for(int q = 0; q < qs.length; q++){
+				CompiledQuery cq = qs[q];
+				local[q] = new int[cq.needles.length];
+				if(!cq.isEmpty()) put(byLength, cq.formatted.length(), from + q);
+				for(int p = 0; p < cq.needles.length; p++){
+					Integer n = index.get(cq.needles[p]);
+					if(n == null){
+						n = found.size();
+						index.put(cq.needles[p], n);
+						found.add(cq.needles[p]);
+						words.add(cq.qWords[p]);
+					}
+					local[q][p] = n;
+					if(n >= count.length) count = Arrays.copyOf(count, 2*count.length);
+					count[n]++;
+				}
+			}
+			needles = found.toArray(new String[found.size()]);
+			qWords = new int[needles.length];
+			users = new int[needles.length][];
+			for(int n = 0; n < needles.length; n++){
+				qWords[n] = words.get(n);
+				users[n] = new int[count[n]];
+				count[n] = 0;
+			}
+			for(int q = 0; q < qs.length; q++)
+				for(int n : local[q])
+					users[n][count[n]++] = from + q;
+			automaton = new AhoCorasick(needles, alphaSize);
+		}
+
+		private static void put(HashMap<Integer, int[]> m, int len, int q){
+			int[] a = m.get(len);
+			a = a == null ? new int[1] : Arrays.copyOf(a, a.length+1);
+			a[a.length-1] = q;
+			m.put(len, a);
+		}
+
+		// same needles as UTF-8, as in CompiledQuery.utf8()
+		AhoCorasick utf8(){
+			AhoCorasick a = utf8Automaton;
+			if(a != null) return a;
+			synchronized(this){
+				if(utf8Automaton == null){
+					String[] bytes = new String[needles.length];
+					for(int i = 0; i < needles.length; i++)
+						bytes[i] = new String(Utf8Tokenizer.encode(needles[i]),
+								java.nio.charset.StandardCharsets.ISO_8859_1);
+					HashMap<Integer, int[]> m = new HashMap<Integer, int[]>();
+					for(int q = 0; q < qs.length; q++)
+						if(!qs[q].isEmpty()) put(m, qs[q].utf8Formatted().length, from + q);
+					byLengthUtf8 = m;
+					utf8Automaton = new AhoCorasick(bytes, 256);
+				}
+				return utf8Automaton;
+			}
+		}
+
+		// queries whose formatted text is len chars (or UTF-8 bytes)
+		int[] sameLength(int len, boolean utf8){
+			if(utf8) utf8();
+			return (utf8 ? byLengthUtf8 : byLength).get(len);
+		}
+
+		long weight(){
+			AhoCorasick u = utf8Automaton;
+			return 4L*automaton.cells() + (u == null ? 0 : 4L*u.cells());
+		}
+	}
+
+	// Everything percolate() needs, never changed once built: the
+	//	  queries, their shards, and where each shard's needles start
+	//	  in the numbering the Pass uses for all of them.
+	//
+	protected static class Snapshot {
+		final String[] ids;
+		final CompiledQuery[] queries;
+		final Shard[] shards;
+		final int[] base;
+		final int needles;
+		final int[] qWords;
+
+		Snapshot(String[] ids, CompiledQuery[] queries, Shard[] shards){
+			this.ids = ids;
+			this.queries = queries;
+			this.shards = shards;
+			base = new int[shards.length];
+			int n = 0;
+			for(int k = 0; k < shards.length; k++){
+				base[k] = n;
+				n += shards[k].needles.length;
+			}
+			needles = n;
+			qWords = new int[n];
+			for(int k = 0; k < shards.length; k++)
+				System.arraycopy(shards[k].qWords, 0, qWords, base[k], shards[k].qWords.length);
+		}
+
+		// the shard holding query q
+		int shardOf(int q){
+			int lo = 0, hi = shards.length-1;
+			while(lo < hi){
+				int mid = (lo + hi + 1) >>> 1;
+				if(shards[mid].from <= q) lo = mid;
+				else hi = mid-1;
+			}
+			return lo;
+		}
+
+		// the shard holding needle n of the Pass numbering
+		int shardOfNeedle(int n){
+			int k = Arrays.binarySearch(base, n);
+			if(k < 0) return -k-2;
+			while(k+1 < base.length && base[k+1] == n) k++;// skip empty shards
+			return k;
+		}
+	}
+
+	protected Snapshot snapshot(){
+		Snapshot sn = snapshot;
+		if(sn != null) return sn;
+		synchronized(this){
+			if(snapshot == null){
+				CompiledQuery[] all = queries.toArray(new CompiledQuery[queries.size()]);
+				ArrayList<Shard> next = new ArrayList<Shard>();
+				int done = 0;
+				for(int k = 0; k < shards.size(); k++){
+					Shard sh = shards.get(k);
+					boolean last = k+1 == shards.size();
+					if(last && !sh.full && sh.to < all.length)
+						break;// grows, below
+					if(dirty.get(k)) cut(all, sh.from, sh.to, next);
+					else next.add(sh);
+					done = sh.to;
+				}
+				cut(all, done, all.length, next);
+				shards.clear();
+				shards.addAll(next);
+				dirty.clear();
+				snapshot = new Snapshot(ids.toArray(new String[ids.size()]), all,
+						next.toArray(new Shard[next.size()]));
+			}
+			return snapshot;
+		}
+	}
+
+	// Shards for queries [from, to): as many queries in each as keep
+	//	  its table under maxCells (by an upper bound, one state per
+	//	  needle char), but at least one.
+	//
+	protected void cut(CompiledQuery[] all, int from, int to, List<Shard> out){
+		int alphaSize = h.ALPHA_SIZE;
+		while(from < to){
+			HashSet<String> seen = new HashSet<String>();
+			BitSet chars = new BitSet();
+			long states = 1;
+			int end = from;
+			while(end < to){
+				long s = states;
+				int c = chars.cardinality();
+				BitSet more = new BitSet();
+				for(String n : all[end].needles){
+					if(seen.contains(n)) continue;
+					s += n.length();
+					for(int i = 0; i < n.length(); i++)
+						if(n.charAt(i) < alphaSize && !chars.get(n.charAt(i)))
+							more.set(n.charAt(i));
+				}
+				c += more.cardinality();
+				if(end > from && s*(c+1) > maxCells) break;
+				Collections.addAll(seen, all[end].needles);
+				chars.or(more);
+				states = s;
+				end++;
+			}
+			out.add(new Shard(all, from, end, end < to, alphaSize));
+			from = end;
+		}
+	}
+
+	// One thread's scans: hits of every needle of every shard, in a
+	//	  Scratch of its own (shard k's needles numbered from
+	//	  Snapshot.base[k]), and the needles that hit at all, so only
+	//	  those are cleared for the next document.  Also hands a query
+	//	  its hits back, under its own needle numbers.
+	//
+	protected static class Pass implements AhoCorasick.Hits, Highlighter.HitSource {
+		final Scratch scan = new Scratch();
+		Snapshot sn;
+		int[] touched = new int[16];
+		int touchedCount;
+		int base;// of the shard being scanned
+		int[] map;// the query being highlighted: its needle -> shard one
+		int mapBase;// ...of the shard it's in
+
+		void use(Snapshot sn, PreparedDocument d){
+			if(this.sn != sn){// new queries, start over
+				this.sn = sn;
+				scan.resetHits(sn.needles, sn.qWords);
+			}
+			else
+				for(int i = 0; i < touchedCount; i++)
+					scan.hitCount[touched[i]] = 0;
+			touchedCount = 0;
+			scan.use(d);
+		}
+
+		public void hit(int pattern, int start){
+			int n = base + pattern;
+			if(scan.hitCount[n] == 0){
+				if(touchedCount == touched.length)
+					touched = Arrays.copyOf(touched, 2*touchedCount);
+				touched[touchedCount++] = n;
+			}
+			scan.hit(n, start);
+		}
+
+		public void hits(CompiledQuery q, Scratch s){
+			for(int p = 0; p < map.length; p++){
+				int n = mapBase + map[p];
+				int[] h = scan.hits[n];
+				for(int i = 0, c = scan.hitCount[n]; i < c; i++)
+					s.hitWord(p, h[i]);
+			}
+		}
+	}
+
+	public Map<String, String> percolate(String doc){
+		return percolate(h.prepare(doc), new Scratch());
+	}
+
+	// Snippets of d for every saved query that matches it, by id, in
+	//	  the order the queries were added; empty for a null doc.
+	//
+	public Map<String, String> percolate(PreparedDocument d, Scratch s){
+		LinkedHashMap<String, String> rtn = new LinkedHashMap<String, String>();
+		if(d == null) return rtn;
+		Snapshot sn = snapshot();
+		Pass pass = passes.get();
+		pass.use(sn, d);
+		boolean utf8 = d.haystackB != null;
+
+		// one scan per shard, for every needle of its queries
+		BitSet hit = new BitSet(sn.queries.length);
+		for(int k = 0; k < sn.shards.length; k++){
+			Shard sh = sn.shards[k];
+			pass.base = sn.base[k];
+			if(utf8)
+				sh.utf8().scan(d.haystackB, d.haystackLen, pass);
+			else
+				sh.automaton.scan(d.haystackA, d.haystackLen, pass);
+
+			int[] same = sh.sameLength(d.haystackLen, utf8);
+			if(same != null)
+				for(int q : same)
+					if(pass.scan.formattedEquals(sn.queries[q])) hit.set(q);
+		}
+
+		// the queries that hit, in order
+		for(int i = 0; i < pass.touchedCount; i++){
+			int n = pass.touched[i], k = sn.shardOfNeedle(n);
+			for(int q : sn.shards[k].users[n - sn.base[k]])
+				hit.set(q);
+		}
+
+		StringBuilder sb = new StringBuilder(h.SNIP_SIZE + 64);
+		for(int q = hit.nextSetBit(0); q >= 0; q = hit.nextSetBit(q+1)){
+			int k = sn.shardOf(q);
+			pass.map = sn.shards[k].local[q - sn.shards[k].from];
+			pass.mapBase = sn.base[k];
+			s.use(d);
+			sb.setLength(0);
+			try{
+				h.highlight_doc(sn.queries[q], s, pass, sb);
+			}catch(java.io.IOException e){// StringBuilders don't throw
+				throw new IllegalStateException(e);
+			}
+			rtn.put(sn.ids[q], sb.toString());
+		}
+		return rtn;
+	}
+}
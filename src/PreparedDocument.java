@@ -0,0 +1,134 @@
+package herrick.test;
+
+import java.nio.*;
+
+// A document that has already been tokenized and indexed, so it can
+// be highlighted against any number of queries without redoing any
+// of that.  Build one with Highlighter.prepare(); keep popular ones
+// in a DocumentCache.
+//
+// Word i is the i'th whitespace-separated chunk of the original;
+// its formatted form is haystackA[wordStart[i], wordEnd[i]), which
+// is empty for chunks that were all punctuation.
+//
+// Documents prepared from UTF-8 bytes keep everything as bytes
+// instead: originalB and haystackB, with all offsets in bytes, and
+// original/haystackA null.  See Utf8Tokenizer.
+//
+// Immutable once built, and safe to share between threads.
+//
+public class PreparedDocument {
+
+	// original text, and where each word sits in it
+	protected final String original;
+	protected final int words;
+	protected final int[] origStart, origEnd;
+
+	// formatted document, and where each word sits in it
+	protected final char[] haystackA;
+	protected final int haystackLen;
+	protected final int[] wordStart, wordEnd;
+
+	// the same, for documents prepared from UTF-8
+	protected final ByteBuffer originalB;
+	protected final byte[] haystackB;
+
+	// see weight()
+	protected final long weight;
+
+	// see suffixArray()
+	private volatile SuffixArray suffixes;
+
+	// prepared for a single search (see Highlighter.prepareOnce()),
+	//	  so searching it never builds the suffix array
+	protected boolean once;
+
+	// the DocumentCache that prepared this, if any, and the weight
+	//	  it's counting for it; only set under its lock
+	protected volatile DocumentCache cache;
+	protected long charged;
+
+	protected PreparedDocument(String original, Tokenizer t){
+		this.original = original;
+		this.originalB = null;
+		this.haystackA = t.text;
+		this.haystackB = null;
+		this.haystackLen = t.length;
+		this.wordStart = t.start;
+		this.wordEnd = t.end;
+
+		this.words = t.words();
+		this.origStart = t.origStart;
+		this.origEnd = t.origEnd;
+
+		// the original and formatted chars, and four offsets a word
+		weight = 2L*original.length() + 2L*haystackA.length + 16L*words;
+	}
+
+	// original is read from its position to its limit, and not copied
+	protected PreparedDocument(ByteBuffer original, Utf8Tokenizer t){
+		this.original = null;
+		this.originalB = original.slice();
+		this.haystackA = null;
+		this.haystackB = t.text;
+		this.haystackLen = t.length;
+		this.wordStart = t.start;
+		this.wordEnd = t.end;
+
+		this.words = t.words();
+		this.origStart = t.origStart;
+		this.origEnd = t.origEnd;
+
+		// the formatted bytes (the original isn't ours) and offsets
+		weight = haystackB.length + 16L*words;
+	}
+
+	public int words(){
+		return words;
+	}
+
+	// Rough size in bytes, used by DocumentCache to bound memory;
+	//	  the suffix array too, once there is one.
+	public long weight(){
+		SuffixArray sa = suffixes;
+		return sa == null ? weight : weight + sa.weight();
+	}
+
+	// The suffix array of the formatted text, built the first time
+	//	  it's asked for and kept from then on (see
+	//	  Highlighter.setSuffixArrays()).  null for UTF-8 documents.
+	//	  A DocumentCache holding this is told, so it can count it.
+	//
+	public SuffixArray suffixArray(){
+		SuffixArray sa = suffixes;
+		if(sa != null || haystackA == null) return sa;
+		boolean built = false;
+		synchronized(this){
+			if(suffixes == null){
+				suffixes = new SuffixArray(haystackA, haystackLen);
+				built = true;
+			}
+			sa = suffixes;
+		}
+		if(built) DocumentCache.grew(this);
+		return sa;
+	}
+
+	// true if the formatted document is exactly s
+	public boolean formattedEquals(String s){
+		if(haystackB != null)
+			return formattedEquals(Utf8Tokenizer.encode(s));
+		if(haystackLen != s.length()) return false;
+		for(int i = 0; i < haystackLen; i++)
+			if(haystackA[i] != s.charAt(i)) return false;
+		return true;
+	}
+
+	// same, for UTF-8 documents and an encode()d string
+	public boolean formattedEquals(byte[] s){
+		if(haystackB == null || haystackLen != s.length) return false;
+		for(int i = 0; i < haystackLen; i++)
+			if(haystackB[i] != s[i]) return false;
+		return true;
+	}
+}
@@ -0,0 +1,216 @@
+package herrick.test;
+
+import java.util.*;
+
+// Everything one highlight_doc() call works on.  Highlighter itself
+// only holds configuration, so a single Highlighter (and a single
+// CompiledQuery) can be shared between threads as long as each thread
+// brings its own Scratch.
+//
+// A Scratch can be reused for any number of calls on the same thread;
+// the fields below describe the LATEST document searched.
+//
+public class Scratch implements AhoCorasick.Hits {
+
+	// what search() decided to show
+	public static final int MATCH = 0;    // best snippet, highlight by Weights
+	public static final int NO_MATCH = 1; // first snippet, no highlights
+	public static final int ALL = 2;      // first snippet, all highlighted (doc==query)
+	protected int mode;
+
+	// set if a budget stopped the search before the end (see 
+	//	  Highlighter.setScanBudget())
+	protected boolean truncated;
+
+	// array to hold #matches/weights of each word
+	protected int[] Weights;
+
+	protected int docWords; // words in document
+	protected int searched; // words search() looked at (fewer if a budget ran out)
+	protected int qWords; // holds words in LATEST search
+
+	// the document, if it's a PreparedDocument
+	protected PreparedDocument doc;
+
+	// original text, and where each word sits in it
+	protected String original;
+	protected int[] origStart, origEnd;
+
+	// where each word sits in haystackA (see PreparedDocument)
+	protected int[] wordStart, wordEnd;
+
+	// Matches, as word indexes (see wordAt()), bucketed per needle:
+	//	  hits[n][0 .. hitCount[n]) are the matches of needle n, each
+	//	  spanning needleWords[n] words.  The buffers only ever grow,
+	//	  so a reused Scratch stops allocating once it's warmed up.
+	protected int[][] hits = new int[0][];
+	protected int[] hitCount = new int[0];
+	protected int[] needleWords;
+
+	// the needle useMatches() last pointed at
+	protected int[] matches;
+	protected int matchCount;
+
+	// the formatted document being searched, as chars (or as UTF-8
+	//	  bytes, with the original too, see PreparedDocument)
+	protected char[] haystackA;
+	protected byte[] haystackB;
+	protected java.nio.ByteBuffer originalB;
+	protected int haystackLen;
+
+	// or, for a DocumentStore document, the formatted bytes where they
+	//	  lie in the mapped file, and buffers for its word offsets
+	//	  (which, like the hit buffers, only ever grow)
+	protected java.nio.ByteBuffer haystackM;
+	private int[][] ownOffsets = {new int[0], new int[0], new int[0], new int[0]};
+
+	public Scratch(){}
+
+	// length of the i'th formatted word
+	protected int wordLen(int i){
+		return wordEnd[i] - wordStart[i];
+	}
+
+	// Index of the word containing haystackA[p]; a separating space
+	//	  belongs to the word before it.  wordStart[] is sorted, so
+	//	  this is a binary search: O(log n), no allocation.
+	//
+	protected int wordAt(int p){
+		int lo = 0, hi = docWords-1;
+		while(lo < hi){// last word with wordStart <= p
+			int mid = (lo + hi + 1) >>> 1;
+			if(wordStart[mid] <= p) lo = mid;
+			else hi = mid-1;
+		}
+		// all-punctuation words are empty and can't hold p
+		while(lo > 0 && wordEnd[lo]==wordStart[lo]) lo--;
+		return lo;
+	}
+
+	// the next word after i that has any formatted text
+	protected int nextWord(int i){
+		do i++; while(i < docWords && wordEnd[i]==wordStart[i]);
+		return i;
+	}
+
+	// Points this at a new document
+	protected void use(PreparedDocument d){
+		doc = d;
+		original = d.original;
+		origStart = d.origStart;
+		origEnd = d.origEnd;
+		wordStart = d.wordStart;
+		wordEnd = d.wordEnd;
+		haystackA = d.haystackA;
+		haystackB = d.haystackB;
+		haystackM = null;
+		originalB = d.originalB;
+		haystackLen = d.haystackLen;
+		docWords = d.words;
+		Weights = null;
+		truncated = false;
+	}
+
+	// Points this at no document, for a null or empty one, so
+	//	  nothing of the one before shows through truncated() or
+	//	  weights()
+	//
+	protected void useNone(){
+		doc = null;
+		docWords = 0;
+		Weights = null;
+		truncated = false;
+	}
+
+	// Points this at a stored document: 'words' words whose offsets
+	//	  are origStart, origEnd, wordStart and wordEnd one after the
+	//	  other at 'at' in offsets, and the original and formatted
+	//	  UTF-8 (see DocumentStore).  Only the offsets are copied.
+	//
+	protected void use(java.nio.ByteBuffer originalUtf8, java.nio.ByteBuffer formatted,
+			java.nio.IntBuffer offsets, int at, int words){
+		if(ownOffsets[0].length < words)
+			for(int i = 0; i < 4; i++)
+				ownOffsets[i] = new int[Math.max(words, 2*ownOffsets[i].length)];
+		for(int i = 0; i < 4; i++)
+			offsets.get(at + i*words, ownOffsets[i], 0, words);
+		doc = null;
+		origStart = ownOffsets[0];
+		origEnd = ownOffsets[1];
+		wordStart = ownOffsets[2];
+		wordEnd = ownOffsets[3];
+		original = null;
+		haystackA = null;
+		haystackB = null;
+		haystackM = formatted;
+		originalB = originalUtf8;
+		haystackLen = formatted.limit();
+		docWords = words;
+		Weights = null;
+		truncated = false;
+	}
+
+	// true if the formatted document is exactly q's formatted text
+	protected boolean formattedEquals(CompiledQuery q){
+		if(haystackM != null){
+			byte[] f = q.utf8Formatted();
+			if(f.length != haystackLen) return false;
+			for(int i = 0; i < haystackLen; i++)
+				if(haystackM.get(i) != f[i]) return false;
+			return true;
+		}
+		if(haystackB != null){
+			byte[] f = q.utf8Formatted();
+			if(f.length != haystackLen) return false;
+			for(int i = 0; i < haystackLen; i++)
+				if(haystackB[i] != f[i]) return false;
+			return true;
+		}
+		if(q.formatted.length() != haystackLen) return false;
+		for(int i = 0; i < haystackLen; i++)
+			if(haystackA[i] != q.formatted.charAt(i)) return false;
+		return true;
+	}
+
+	// Empties the hit buffers for a query with 'needles' needles
+	protected void resetHits(int needles, int[] words){
+		if(hits.length < needles){
+			hits = Arrays.copyOf(hits, needles);
+			hitCount = new int[needles];
+		}
+		for(int n = 0; n < needles; n++){
+			hitCount[n] = 0;
+			if(hits[n] == null) hits[n] = new int[16];
+		}
+		needleWords = words;
+	}
+
+	// Match sink for AhoCorasick.scan(): record the word it starts in.
+	//	  Partial-word matches credit the enclosing word.
+	//
+	public void hit(int pattern, int start){
+		hitWord(pattern, wordAt(start));
+	}
+
+	// same, for a match already known to start in word i
+	protected void hitWord(int pattern, int i){
+		int[] h = hits[pattern];
+		int c = hitCount[pattern];
+		if(c == h.length)
+			hits[pattern] = h = Arrays.copyOf(h, c*2);
+		h[c] = i;
+		hitCount[pattern] = c+1;
+	}
+
+	// True if the latest snippet is only the best of the part of the
+	//	  document a scan or time budget let us search
+	//
+	public boolean truncated(){
+		return truncated;
+	}
+
+	// weights of the latest document, one per original word
+	public int[] weights(){
+		return Weights;
+	}
+}
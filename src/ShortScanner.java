@@ -0,0 +1,37 @@
+package herrick.test;
+
+// Finds a short needle (1-3 chars, say) by checking every position
+// directly.  There are no tables to build, which for a needle this
+// short costs more than skipping can save: no skip is ever longer
+// than the needle.  Correct for any length, but O(haystack * needle)
+// at worst, so MatcherCosts only picks it where it's measured faster.
+//
+// Immutable, may be shared freely.
+//
+public class ShortScanner implements NeedleScanner {
+
+	protected final char[] needleA;
+	protected final int needleLen; // 0 if it can never match
+
+	// needles with chars >= alphaSize never match, as in AhoCorasick
+	public ShortScanner(String needle, int alphaSize){
+		needleA = needle.toCharArray();
+		boolean in = needleA.length > 0;
+		for(char c : needleA) in &= c < alphaSize;
+		needleLen = in ? needleA.length : 0;
+	}
+
+	public void scan(char[] haystackA, int from, int to, int pattern,
+			AhoCorasick.Hits out){
+		if(needleLen == 0) return;
+		char first = needleA[0];
+		int end = to - needleLen;// last possible start
+		outer:
+		for(int i = from; i <= end; i++){
+			if(haystackA[i] != first) continue;
+			for(int j = 1; j < needleLen; j++)
+				if(haystackA[i+j] != needleA[j]) continue outer;
+			out.hit(pattern, i);
+		}
+	}
+}
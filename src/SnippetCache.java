@@ -0,0 +1,151 @@
+package herrick.test;
+
+import java.util.*;
+
+// Bounded LRU cache of finished snippets, keyed by (document id,
+// version, CompiledQuery.key()), for the popular documents that get
+// highlighted for the same popular queries over and over.
+//
+// Because the key is the normalized query (after format_Q, rmCommon
+// and rmDupes), "Toast, the JAM" and "jam toast" share an entry.  The
+// one thing that depends on the spelling is the doc==query case, so
+// results of that case are never cached, and a hit is only trusted
+// if this query's formatted text can't be the document's (checked
+// against the document's formatted length and hash, kept with the
+// entry).
+//
+// 'version' is anything that changes whenever the text does: a
+// revision, a timestamp, a content hash.  Snippets depend on the
+// Highlighter's settings too, so clear() after changing them.
+//
+// Safe to share between threads.  Misses are computed outside the
+// lock, so two threads may both compute the same entry.
+//
+public class SnippetCache {
+
+	protected final Highlighter h;
+	protected final DocumentCache docs; // may be null
+	protected final int maxEntries;
+
+	protected long hits, misses, evictions;
+
+	// access-ordered, so the eldest entry is the least recently used
+	protected final LinkedHashMap<Key, Entry> map =
+		new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> e){
+				if(size() <= maxEntries) return false;
+				evictions++;
+				return true;
+			}
+		};
+
+	public SnippetCache(Highlighter h, int maxEntries){
+		this(h, null, maxEntries);
+	}
+
+	// Misses get their PreparedDocument from docs, so a document
+	//	  isn't prepared again for every new query.
+	//
+	public SnippetCache(Highlighter h, DocumentCache docs, int maxEntries){
+		this.h = h;
+		this.docs = docs;
+		this.maxEntries = maxEntries;
+	}
+
+	// Same as h.highlight_doc(text, q), from the cache if we can.
+	//	  text is only looked at on a miss.
+	//
+	public String highlight_doc(String id, long version, String text,
+			CompiledQuery q){
+		Key k = new Key(id, version, q.key());
+		synchronized(this){
+			Entry e = map.get(k);
+			if(e != null && !e.mightEqual(q)){
+				hits++;
+				return e.snippet;
+			}
+			misses++;
+		}
+
+		PreparedDocument d = docs != null ? docs.get(id, version, text)
+			: h.prepareOnce(text);
+		if(d == null) return null;
+		String snippet = h.highlight_doc(d, q);
+		if(!q.isEmpty() && d.formattedEquals(q.formatted))
+			return snippet;// doc==query, only right for this spelling
+		synchronized(this){
+			map.put(k, new Entry(snippet, d));
+		}
+		return snippet;
+	}
+
+	public String highlight_doc(String id, long version, String text,
+			String query){
+		return highlight_doc(id, version, text, h.compile(query));
+	}
+
+	public synchronized void clear(){
+		map.clear();
+	}
+
+	public synchronized int size(){
+		return map.size();
+	}
+
+	public synchronized long hits(){
+		return hits;
+	}
+
+	public synchronized long misses(){
+		return misses;
+	}
+
+	public synchronized long evictions(){
+		return evictions;
+	}
+
+	// a snippet, and enough of its document's formatted text to
+	//	  rule out the doc==query case for other spellings
+	protected static final class Entry {
+		final String snippet;
+		final int length, hash;
+
+		Entry(String snippet, PreparedDocument d){
+			this.snippet = snippet;
+			length = d.haystackLen;
+			int x = 0;// same as String.hashCode()
+			for(int i = 0; i < length; i++) x = 31*x + d.haystackA[i];
+			hash = x;
+		}
+
+		// could q's formatted text be this document's?
+		boolean mightEqual(CompiledQuery q){
+			return !q.isEmpty() && q.formatted.length() == length
+				&& q.formatted.hashCode() == hash;
+		}
+	}
+
+	protected static final class Key {
+		final String id;
+		final long version;
+		final String query;
+
+		Key(String id, long version, String query){
+			this.id = id;
+			this.version = version;
+			this.query = query;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return version == k.version && id.equals(k.id)
+				&& query.equals(k.query);
+		}
+
+		public int hashCode(){
+			return 31*(31*id.hashCode() + (int)(version ^ (version >>> 32)))
+				+ query.hashCode();
+		}
+	}
+}
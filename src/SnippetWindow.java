@@ -0,0 +1,124 @@
+package herrick.test;
+
+// Incremental version of the bestSnippets() sliding window.  Words are
+// fed in one at a time with their formatted length and weight, and
+// only the words of the current window are kept, so it works the same
+// over an array or over a stream of any length.
+//
+// A window is a run of words whose (length + 1)s add up to at most
+// snipSize.  Only maximal windows are considered (ones that can't grow
+// at either end), and the one with the highest total weight wins;
+// ties go to the earliest.  A single word longer than snipSize is a
+// window by itself.
+//
+// If keepText is set, each word's text is kept alongside it and the
+// winning window's words are copied out, so the snippet can be built
+// after the source is gone.
+//
+public class SnippetWindow {
+
+	protected final int snipSize;
+	protected final boolean keepText;
+
+	// ring buffer of the words in the current window
+	protected long[] index = new long[16];
+	protected int[] len = new int[16], weight = new int[16];
+	protected String[] text;
+	protected int first, count;
+	protected int length, sum;
+
+	// best window so far, [bestTail, bestHead]
+	protected long bestTail = 0, bestHead = -1;
+	protected int bestSum = -1;
+	protected String[] bestText;
+	protected int[] bestWeight;
+
+	public SnippetWindow(int snipSize, boolean keepText){
+		this.snipSize = snipSize;
+		this.keepText = keepText;
+		if(keepText){
+			text = new String[16];
+			bestText = new String[0];
+			bestWeight = new int[0];
+		}
+	}
+
+	public void add(long i, int wordLen, int wordWeight){
+		add(i, wordLen, wordWeight, null);
+	}
+
+	// feed the next word; indexes must be increasing
+	public void add(long i, int wordLen, int wordWeight, String wordText){
+		if(count > 0 && length + wordLen + 1 > snipSize){
+			candidate();// can't grow any more, so it's maximal
+			while(count > 0 && length + wordLen + 1 > snipSize){
+				length -= len[first] + 1;
+				sum -= weight[first];
+				if(keepText) text[first] = null;
+				first = (first + 1) % index.length;
+				count--;
+			}
+		}
+		if(count == index.length) grow();
+		int slot = (first + count) % index.length;
+		index[slot] = i;
+		len[slot] = wordLen;
+		weight[slot] = wordWeight;
+		if(keepText) text[slot] = wordText;
+		count++;
+		length += wordLen + 1;
+		sum += wordWeight;
+	}
+
+	// call after the last word
+	public void finish(){
+		if(count > 0) candidate();
+	}
+
+	public long bestTail(){
+		return bestTail;
+	}
+
+	public long bestHead(){
+		return bestHead;
+	}
+
+	public int bestSum(){
+		return bestSum;
+	}
+
+	protected void candidate(){
+		if(sum <= bestSum) return;
+		bestSum = sum;
+		bestTail = index[first];
+		bestHead = index[(first + count - 1) % index.length];
+		if(keepText){
+			bestText = new String[count];
+			bestWeight = new int[count];
+			for(int k = 0; k < count; k++){
+				int slot = (first + k) % index.length;
+				bestText[k] = text[slot];
+				bestWeight[k] = weight[slot];
+			}
+		}
+	}
+
+	private void grow(){
+		int cap = index.length*2;
+		long[] i2 = new long[cap];
+		int[] l2 = new int[cap], w2 = new int[cap];
+		String[] t2 = keepText ? new String[cap] : null;
+		for(int k = 0; k < count; k++){
+			int slot = (first + k) % index.length;
+			i2[k] = index[slot];
+			l2[k] = len[slot];
+			w2[k] = weight[slot];
+			if(keepText) t2[k] = text[slot];
+		}
+		index = i2;
+		len = l2;
+		weight = w2;
+		text = t2;
+		first = 0;
+	}
+}
@@ -0,0 +1,112 @@
+package herrick.test;
+
+import java.nio.charset.*;
+import java.util.*;
+
+// A set of stopwords ('commons') compiled into an open-addressing hash
+// table, so a word can be looked up straight out of a tokenizer's
+// buffer: no substring, no allocation, one hash and usually one
+// compare whatever the size of the set.
+//
+// Words are formatted like everything else (lowercased, punctuation
+// stripped) when the set is built.  Immutable, so one set can be
+// shared by any number of Highlighters and threads.
+//
+public class StopWords {
+
+	// Highlighter.COMMONS, the set we've always used
+	public static final StopWords DEFAULT = new StopWords(Highlighter.COMMONS);
+
+	// the empty set, to keep every word
+	public static final StopWords NONE = new StopWords();
+
+	protected final char[][] table; // null for an empty slot
+	protected final int mask;
+	protected final int size;
+	protected final int maxLength;
+
+	public StopWords(String... words){
+		this(Arrays.asList(words));
+	}
+
+	public StopWords(Collection<String> words){
+		HashSet<String> formatted = new HashSet<String>();
+		for(String w : words){
+			String f = new Tokenizer(w, 0, (StopWords)null).toString();
+			if(f.length() > 0) formatted.add(f);
+		}
+		int cap = 4;
+		while(cap < 2*formatted.size()) cap *= 2;
+		table = new char[cap][];
+		mask = cap-1;
+		int n = 0, max = 0;
+		for(String w : formatted){
+			char[] f = w.toCharArray();
+			int i = hash(f, 0, f.length) & mask;
+			while(table[i] != null) i = (i+1) & mask;
+			table[i] = f;
+			n++;
+			max = Math.max(max, f.length);
+		}
+		size = n;
+		maxLength = max;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	// length of the longest word, nothing longer can be in here
+	public int maxLength(){
+		return maxLength;
+	}
+
+	// true if text[from, to) is one of the words
+	public boolean contains(char[] text, int from, int to){
+		int len = to - from;
+		if(len == 0 || len > maxLength) return false;
+		for(int i = hash(text, from, to) & mask; table[i] != null; i = (i+1) & mask){
+			char[] w = table[i];
+			if(w.length != len) continue;
+			int j = 0;
+			while(j < len && w[j] == text[from+j]) j++;
+			if(j == len) return true;
+		}
+		return false;
+	}
+
+	public boolean contains(CharSequence s){
+		char[] c = new char[s.length()];
+		for(int i = 0; i < c.length; i++) c[i] = s.charAt(i);
+		return contains(c, 0, c.length);
+	}
+
+	// Same, for UTF-8 bytes (see Utf8Tokenizer).  ASCII words are
+	//	  looked up in place; anything else is decoded first.
+	//
+	public boolean contains(byte[] text, int from, int to){
+		int len = to - from;
+		if(len == 0 || len > 4*maxLength) return false;
+		int h = 0;
+		for(int i = from; i < to; i++){
+			if(text[i] < 0)
+				return contains(new String(text, from, len, StandardCharsets.UTF_8));
+			h = 31*h + text[i];
+		}
+		if(len > maxLength) return false;
+		for(int i = (h ^ (h >>> 16)) & mask; table[i] != null; i = (i+1) & mask){
+			char[] w = table[i];
+			if(w.length != len) continue;
+			int j = 0;
+			while(j < len && w[j] == text[from+j]) j++;
+			if(j == len) return true;
+		}
+		return false;
+	}
+
+	protected static int hash(char[] text, int from, int to){
+		int h = 0;
+		for(int i = from; i < to; i++) h = 31*h + text[i];
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,367 @@
+package herrick.test;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Highlights documents that are too big to hold in memory (logs,
+// transcripts, ...) by reading them once from a Reader, Path or
+// (memory-mapped) UTF-8 ByteBuffer.
+//
+// Same idea as highlight_doc(), but nothing is ever indexed by
+// position in the whole document:
+//	 -chars are tokenized and formatted on the fly, and fed straight
+//	  into the query's AhoCorasick automaton, whose state carries over
+//	  from one buffer to the next (so no overlap needs re-reading)
+//	 -a word's weight can only change while a match could still start
+//	  in it, i.e. until we're the longest needle's length past it, so
+//	  only that many words are kept pending
+//	 -finished words go into SnippetWindows, which keep nothing but the
+//	  current and best windows
+//
+// Memory is O(SNIP_SIZE + query) however big the document is.  Since
+// we don't know whether any phrase (or the exact query) matches until
+// the end, weights for both outcomes are kept, each in its own window.
+//
+// Results match highlight_doc() on the same text, except that a single
+// word longer than SNIP_SIZE chars is cut short.
+//
+public class StreamingHighlighter {
+
+	protected static final int BUFFER = 8192;
+
+	// what a needle counts towards (see CompiledQuery)
+	protected static final int PHRASE = 1, EXACT = 2, REST = 4, TERM = 8;
+
+	protected final Highlighter h;
+
+	public StreamingHighlighter(Highlighter h){
+		this.h = h;
+	}
+
+	public String highlight(Reader in, CompiledQuery q) throws IOException {
+		StringBuilder sb = new StringBuilder(h.SNIP_SIZE + 64);
+		return highlight(in, q, sb) ? sb.toString() : null;
+	}
+
+	public String highlight(Path p, CompiledQuery q) throws IOException {
+		try(Reader in = Files.newBufferedReader(p, StandardCharsets.UTF_8)){
+			return highlight(in, q);
+		}
+	}
+
+	// buf is read from its position to its limit, and left untouched
+	public String highlight(ByteBuffer buf, CompiledQuery q) throws IOException {
+		return highlight(new InputStreamReader(
+					new BufferInput(buf.duplicate()), StandardCharsets.UTF_8), q);
+	}
+
+	// Streams the snippet into out.  Returns false (and writes
+	//	  nothing) if in was empty.
+	//
+	public boolean highlight(Reader in, CompiledQuery q, Appendable out)
+			throws IOException {
+		Run r = new Run(q);
+		char[] buf = new char[BUFFER];
+		boolean any = false;
+		int n;
+		while((n = in.read(buf)) != -1){
+			any |= n > 0;
+			for(int i = 0; i < n; i++)
+				r.feed(buf[i]);
+		}
+		if(!any) return false;
+		r.finish(out);
+		return true;
+	}
+
+	// State for one document
+	protected class Run {
+		final CompiledQuery q;
+		final AhoCorasick ac;
+		final int[] role;
+		final int exactWeight, maxLen, cap;
+		int state;
+		boolean phraseHit, exactHit, termHit;
+
+		// formatted chars so far, and is there a word to put a space after
+		long pos;
+		boolean anyText;
+
+		// is formatted == q.formatted so far (for the doc==query case)
+		boolean eq;
+		int eqPos;
+
+		// words that could still be credited by a match, oldest first;
+		// the last one is the current word if inWord
+		long[] pIndex = new long[16], pStart = new long[16];
+		int[] pLen = new int[16], pA = new int[16], pB = new int[16],
+			pOrigLen = new int[16];
+		StringBuilder[] pText = new StringBuilder[16];
+		int pFirst, pCount;
+		long words;
+		boolean inWord;
+
+		// a: weights if the phrase/exact query matched, b: if not
+		final SnippetWindow a, b;
+
+		// with SKIP_STOPWORDS, the current word's formatted chars are
+		//	  held back until we know it's not a stopword (or it's
+		//	  too long to be one); stop is null otherwise
+		final StopWords stop;
+		final char[] held;
+		int heldLen;
+		boolean holding;
+
+		// words of the first snippet, for no match / no query
+		ArrayList<String> firstText = new ArrayList<String>();
+		int firstLen;
+		boolean firstDone;
+
+		Run(CompiledQuery q){
+			this.q = q;
+			ac = q.isEmpty() ? null : q.automaton();
+			eq = ac != null;
+			role = new int[q.needles.length];
+			for(int n : q.phrases) role[n] |= PHRASE;
+			if(q.exact >= 0) role[q.exact] |= EXACT;
+			for(int n : q.rest) role[n] |= REST;
+			for(int n : q.terms) role[n] |= TERM;
+			exactWeight = q.exact >= 0 && q.qWords[q.exact] > 1 ? 2 : 1;
+			maxLen = ac == null ? 0 : ac.maxLength();
+			cap = h.SNIP_SIZE;
+			a = new SnippetWindow(h.SNIP_SIZE, true);
+			b = new SnippetWindow(h.SNIP_SIZE, true);
+			stop = h.SKIP_STOPWORDS ? h.STOPWORDS : null;
+			held = stop == null ? null : new char[stop.maxLength()+1];
+		}
+
+		void feed(char c){
+			if(Tokenizer.isSpace(c)){
+				if(inWord) endWord();
+				return;
+			}
+			if(!inWord) startWord();
+			int last = slot(pCount-1);
+			pOrigLen[last]++;
+			if(pText[last].length() < cap) pText[last].append(c);
+			if(Tokenizer.isPunct(c)) return;
+			c = Character.toLowerCase(c);
+			if(holding){
+				held[heldLen++] = c;
+				if(heldLen == held.length) unhold();// too long for a stopword
+				return;
+			}
+			emit(c);
+		}
+
+		// one more formatted char of the current word
+		void emit(char c){
+			int last = slot(pCount-1);
+			if(pLen[last] == 0){// first formatted char of this word
+				if(anyText) formatted(' ');
+				pStart[last] = pos;
+				anyText = true;
+			}
+			pLen[last]++;
+			formatted(c);
+		}
+
+		// the held chars aren't a stopword after all
+		void unhold(){
+			holding = false;
+			for(int i = 0; i < heldLen; i++)
+				emit(held[i]);
+			heldLen = 0;
+		}
+
+		void startWord(){
+			if(pCount == pIndex.length) grow();
+			int k = slot(pCount++);
+			pIndex[k] = words++;
+			pStart[k] = pos;
+			pLen[k] = pA[k] = pB[k] = pOrigLen[k] = 0;
+			pText[k] = new StringBuilder();
+			inWord = true;
+			holding = stop != null;
+		}
+
+		void endWord(){
+			if(holding){
+				if(stop.contains(held, 0, heldLen)){// drop it, leave it empty
+					holding = false;
+					heldLen = 0;
+				}
+				else unhold();
+			}
+			inWord = false;
+			release(false);
+		}
+
+		// one more char of the formatted document
+		void formatted(char c){
+			eq = eq && eqPos < q.formatted.length() && q.formatted.charAt(eqPos) == c;
+			eqPos++;
+			if(ac != null){
+				state = ac.next(state, c);
+				int m = ac.patternAt[state] >= 0 ? state : ac.dictLink[state];
+				while(m >= 0){
+					int p = ac.patternAt[m];
+					credit(p, pos - ac.lengths[p] + 1);
+					m = ac.dictLink[m];
+				}
+			}
+			pos++;
+			release(false);
+		}
+
+		// same as fillWeights() for one match of needle p
+		void credit(int p, long start){
+			// word containing start: last non-empty word starting at or before it
+			int k = pCount-1;
+			while(k > 0 && (pLen[slot(k)] == 0 || pStart[slot(k)] > start)) k--;
+			for(int w = 0; w < q.qWords[p]; w++){
+				if(w > 0){// next word with any text
+					k++;
+					for(; k < pCount && pLen[slot(k)] == 0; k++)
+						if(stop != null) add(p, slot(k));// skipped stopword
+				}
+				if(k >= pCount) break;
+				add(p, slot(k));
+			}
+		}
+
+		void add(int p, int s){
+			if((role[p] & PHRASE) != 0){ pA[s] += 2; phraseHit = true; }
+			if((role[p] & EXACT) != 0){ pA[s] += exactWeight; exactHit = true; }
+			if((role[p] & REST) != 0) pA[s] += 1;
+			if((role[p] & TERM) != 0){ pB[s] += 1; termHit = true; }
+		}
+
+		// hands finished words that no match can reach any more
+		//	  to the windows (all of them, if 'all')
+		void release(boolean all){
+			while(pCount > 0 && !(inWord && pCount == 1)){
+				int k = slot(0);
+				if(!all && pLen[k] > 0 && pStart[k] + pLen[k] >= pos - maxLen + 1)
+					return;
+				String text = pText[k].toString();
+				a.add(pIndex[k], pLen[k], pA[k], text);
+				b.add(pIndex[k], pLen[k], pB[k], text);
+				if(!firstDone){
+					if(firstText.isEmpty() || firstLen + pOrigLen[k] + 1 <= cap){
+						firstText.add(text);
+						firstLen += pOrigLen[k] + 1;
+					}
+					else firstDone = true;
+				}
+				pText[k] = null;
+				pFirst = slot(1);
+				pCount--;
+			}
+		}
+
+		void finish(Appendable out) throws IOException {
+			if(inWord) endWord();
+			release(true);
+			a.finish();
+			b.finish();
+			if(words == 0) return;// nothing but whitespace
+
+			SnippetWindow best = null;
+			if(q.phrases.length > 0 ? phraseHit : exactHit) best = a;
+			else if(termHit) best = b;
+
+			if(eq && eqPos == q.formatted.length()){
+				out.append(h.START_TAG);
+				join(firstText, out);
+				out.append(h.END_TAG);
+			}
+			else if(best == null)
+				join(firstText, out);
+			else
+				render(best, out);
+		}
+
+		void join(List<String> text, Appendable out) throws IOException {
+			for(int i = 0; i < text.size(); i++){
+				if(i > 0) out.append(' ');
+				out.append(text.get(i));
+			}
+		}
+
+		// like Highlighter.highlight(), over the saved window
+		void render(SnippetWindow w, Appendable out) throws IOException {
+			boolean inProgress = false;
+			String[] text = w.bestText;
+			for(int i = 0; i < text.length; i++){
+				boolean hit = w.bestWeight[i] != 0;
+				if(inProgress && !hit){
+					out.append(h.END_TAG);
+					inProgress = false;
+				}
+				if(i > 0) out.append(' ');
+				if(hit && !inProgress){
+					out.append(h.START_TAG);
+					inProgress = true;
+				}
+				out.append(text[i]);
+			}
+			if(inProgress)
+				out.append(h.END_TAG);
+		}
+
+		int slot(int k){
+			return (pFirst + k) % pIndex.length;
+		}
+
+		void grow(){
+			int cap = pIndex.length*2;
+			long[] i2 = new long[cap], s2 = new long[cap];
+			int[] l2 = new int[cap], a2 = new int[cap], b2 = new int[cap],
+				o2 = new int[cap];
+			StringBuilder[] t2 = new StringBuilder[cap];
+			for(int k = 0; k < pCount; k++){
+				int s = slot(k);
+				i2[k] = pIndex[s];
+				s2[k] = pStart[s];
+				l2[k] = pLen[s];
+				a2[k] = pA[s];
+				b2[k] = pB[s];
+				o2[k] = pOrigLen[s];
+				t2[k] = pText[s];
+			}
+			pIndex = i2;
+			pStart = s2;
+			pLen = l2;
+			pA = a2;
+			pB = b2;
+			pOrigLen = o2;
+			pText = t2;
+			pFirst = 0;
+		}
+	}
+
+	// Reads a ByteBuffer as an InputStream, without copying it
+	protected static class BufferInput extends InputStream {
+		private final ByteBuffer buf;
+
+		BufferInput(ByteBuffer buf){
+			this.buf = buf;
+		}
+
+		public int read(){
+			return buf.hasRemaining() ? buf.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len){
+			if(len == 0) return 0;
+			if(!buf.hasRemaining()) return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+	}
+}
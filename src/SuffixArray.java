@@ -0,0 +1,176 @@
+package herrick.test;
+
+import java.util.*;
+
+// Suffix array, with LCP array, over a PreparedDocument's formatted
+// text, for big documents that are searched over and over (manuals,
+// contracts).  A needle's occurrences are then a range of the array,
+// found with one binary search, O(m log n), and walked with the LCP
+// array, rather than a scan of the whole document per query.
+//
+// Occurrences are exactly those a scan finds, overlapping and
+// partial-word ones included, since every one of them is the start
+// of some suffix.  Needles with chars outside the query's alphabet
+// never match, as in AhoCorasick.
+//
+// 8 bytes per formatted char, built in O(n log n) by prefix doubling
+// with counting sorts.  Built once per document (see
+// PreparedDocument.suffixArray()); immutable, and safe to share.
+//
+public class SuffixArray implements Highlighter.HitSource {
+
+	protected final char[] text;
+	protected final int n;
+
+	// sa[i] = start of the i'th smallest suffix; lcp[i] = length of
+	//	  the common prefix of suffixes sa[i-1] and sa[i] (lcp[0] = 0)
+	protected final int[] sa, lcp;
+
+	public SuffixArray(char[] text, int n){
+		this.text = text;
+		this.n = n;
+		sa = build(text, n);
+		lcp = kasai(text, n, sa);
+	}
+
+	public int length(){
+		return n;
+	}
+
+	// Rough size in bytes
+	public long weight(){
+		return 8L*n;
+	}
+
+	// Index in sa of the first suffix that starts with needle, or -1
+	//	  if none does.  The rest follow while lcp >= needle length.
+	//
+	public int find(String needle){
+		int m = needle.length();
+		int lo = 0, hi = n;// first suffix >= needle is in [lo, hi]
+		int lcpLo = 0, lcpHi = 0;// needle's common prefix with sa[lo-1], sa[hi]
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int j = Math.min(lcpLo, lcpHi);// known to match already
+			int p = sa[mid];
+			while(j < m && p + j < n && text[p+j] == needle.charAt(j)) j++;
+			if(j == m || (p + j < n && text[p+j] > needle.charAt(j))){
+				hi = mid;// suffix >= needle
+				lcpHi = j;
+			}
+			else{
+				lo = mid + 1;
+				lcpLo = j;
+			}
+		}
+		if(lo == n) return -1;
+		int p = sa[lo];
+		if(p + m > n) return -1;
+		for(int j = 0; j < m; j++)
+			if(text[p+j] != needle.charAt(j)) return -1;
+		return lo;
+	}
+
+	// number of occurrences of needle
+	public int count(String needle){
+		int i = find(needle);
+		if(i < 0) return 0;
+		int m = needle.length(), j = i+1;
+		while(j < n && lcp[j] >= m) j++;
+		return j - i;
+	}
+
+	// Fills s.hits for every needle of q, in document order per
+	//	  needle, as Highlighter.scan() would have.
+	//
+	public void hits(CompiledQuery q, Scratch s){
+		int[] pos = new int[16];
+		for(int p = 0; p < q.needles.length; p++){
+			String needle = q.needles[p];
+			if(!inAlphabet(needle, q.alphaSize)) continue;
+			int i = find(needle);
+			if(i < 0) continue;
+			int m = needle.length(), c = 0;
+			do{
+				if(c == pos.length) pos = Arrays.copyOf(pos, 2*c);
+				pos[c++] = sa[i++];
+			}while(i < n && lcp[i] >= m);
+			Arrays.sort(pos, 0, c);
+			for(int j = 0; j < c; j++)
+				s.hit(p, pos[j]);
+		}
+	}
+
+	protected static boolean inAlphabet(String needle, int alphaSize){
+		for(int i = 0; i < needle.length(); i++)
+			if(needle.charAt(i) >= alphaSize) return false;
+		return needle.length() > 0;
+	}
+
+	// Sorts the cyclic shifts of text[0..n) plus a sentinel smaller
+	//	  than any char, doubling the compared length each round; with
+	//	  the sentinel, shifts sort the same as suffixes.
+	//
+	protected static int[] build(char[] text, int n){
+		int len = n+1;
+		int[] p = new int[len], c = new int[len];
+		int[] pn = new int[len], cn = new int[len];
+		int[] cnt = new int[Math.max(len, Character.MAX_VALUE + 2)];
+
+		// by first char (the sentinel is 0, chars are shifted up one)
+		for(int i = 0; i < len; i++) cnt[i < n ? text[i]+1 : 0]++;
+		for(int i = 1; i < cnt.length; i++) cnt[i] += cnt[i-1];
+		for(int i = len-1; i >= 0; i--) p[--cnt[i < n ? text[i]+1 : 0]] = i;
+		int classes = 1;
+		c[p[0]] = 0;
+		for(int i = 1; i < len; i++){
+			if(text(text, n, p[i]) != text(text, n, p[i-1])) classes++;
+			c[p[i]] = classes-1;
+		}
+
+		// then by the first 2k chars, from the order by the first k
+		for(int k = 1; k < len && classes < len; k <<= 1){
+			for(int i = 0; i < len; i++){
+				pn[i] = p[i] - k;
+				if(pn[i] < 0) pn[i] += len;
+			}
+			Arrays.fill(cnt, 0, classes, 0);
+			for(int i = 0; i < len; i++) cnt[c[pn[i]]]++;
+			for(int i = 1; i < classes; i++) cnt[i] += cnt[i-1];
+			for(int i = len-1; i >= 0; i--) p[--cnt[c[pn[i]]]] = pn[i];
+			cn[p[0]] = 0;
+			classes = 1;
+			for(int i = 1; i < len; i++){
+				int a = p[i], b = p[i-1];
+				if(c[a] != c[b] || c[(a+k) % len] != c[(b+k) % len]) classes++;
+				cn[p[i]] = classes-1;
+			}
+			int[] t = c; c = cn; cn = t;
+		}
+		return Arrays.copyOfRange(p, 1, len);// p[0] is the sentinel
+	}
+
+	private static int text(char[] text, int n, int i){
+		return i < n ? text[i]+1 : 0;
+	}
+
+	// Kasai et al.: lcp of each suffix with the one before it in sa,
+	//	  in O(n), going through the suffixes in text order
+	//
+	protected static int[] kasai(char[] text, int n, int[] sa){
+		int[] rank = new int[n], lcp = new int[n];
+		for(int i = 0; i < n; i++) rank[sa[i]] = i;
+		int h = 0;
+		for(int i = 0; i < n; i++){
+			if(rank[i] == 0){
+				h = 0;
+				continue;
+			}
+			int j = sa[rank[i]-1];
+			while(i+h < n && j+h < n && text[i+h] == text[j+h]) h++;
+			lcp[rank[i]] = h;
+			if(h > 0) h--;
+		}
+		return lcp;
+	}
+}
@@ -3,6 +3,7 @@ package herrick.test;
 	
 	public class Tests extends TestCase { 
 	  private Highlighter h;
+		private Scratch s;
 		private String st = "[[HIGHLIGHT]]";
 		private String end = "[[ENDHIGHLIGHT]]";
 		private String word = "something";
@@ -17,10 +18,12 @@ package herrick.test;
 	
 	  protected void setUp() { 
 			h = new Highlighter();
+			s = new Scratch();
 	  }
 
 	  protected void tearDown() { 
 			h = null;
+			s = null;
 	  }
 	
 		//test initialization 
@@ -88,46 +91,46 @@ package herrick.test;
 		//Highlighter.java
 
 		public void testWeights1(){
-			h.highlight_doc(doc, "toast");
-			assertEquals("toast: ", 1, h.Weights[0]);
-			assertEquals("toaster: ", 1, h.Weights[1]);
-			assertEquals("toad: ", 0, h.Weights[2]);
+			h.highlight_doc(doc, "toast", s);
+			assertEquals("toast: ", 1, s.Weights[0]);
+			assertEquals("toaster: ", 1, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
 		}
 
 		public void testWeights2(){
-			h.highlight_doc(doc, "toaster");
-			assertEquals("toast: ", 0, h.Weights[0]);
-			assertEquals("toaster: ", 1, h.Weights[1]);
-			assertEquals("toad: ", 0, h.Weights[2]);
+			h.highlight_doc(doc, "toaster", s);
+			assertEquals("toast: ", 0, s.Weights[0]);
+			assertEquals("toaster: ", 1, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
 		}
 
 		public void testWeights3(){
-			h.highlight_doc(doc, "toast toaster");
-			assertEquals("toast: ", 2, h.Weights[0]);
-			assertEquals("toaster: ", 2, h.Weights[1]);
-			assertEquals("toad: ", 0, h.Weights[2]);
+			h.highlight_doc(doc, "toast toaster", s);
+			assertEquals("toast: ", 2, s.Weights[0]);
+			assertEquals("toaster: ", 2, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
 		}
 
 		public void testWeights4(){
-			h.highlight_doc(doc, "\"toast toaster\"");
-			assertEquals("toast: ", 2, h.Weights[0]);
-			assertEquals("toaster: ", 2, h.Weights[1]);
-			assertEquals("toad: ", 0, h.Weights[2]);
+			h.highlight_doc(doc, "\"toast toaster\"", s);
+			assertEquals("toast: ", 2, s.Weights[0]);
+			assertEquals("toaster: ", 2, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
 		}
 		
 		public void testWeights5(){
-			h.highlight_doc(doc, "\"toaster toast\"");
-			assertEquals("toast: ", 1, h.Weights[0]);
-			assertEquals("toaster: ", 2, h.Weights[1]);
-			assertEquals("toad: ", 0, h.Weights[2]);
+			h.highlight_doc(doc, "\"toaster toast\"", s);
+			assertEquals("toast: ", 1, s.Weights[0]);
+			assertEquals("toaster: ", 2, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
 		}
 		
 		
 		public void testWeights6(){
-			h.highlight_doc(doc, "\"toaster\"");
-			assertEquals("toast: ", 0, h.Weights[0]);
-			assertEquals("toaster: ", 2, h.Weights[1]);
-			assertEquals("toad: ", 0, h.Weights[2]);
+			h.highlight_doc(doc, "\"toaster\"", s);
+			assertEquals("toast: ", 0, s.Weights[0]);
+			assertEquals("toaster: ", 2, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
 		}
 		
 		public void testCommons(){
@@ -151,19 +154,931 @@ package herrick.test;
 		*/
 		public void testDupes1(){
 			//test that dupes are kept in a phrase
-			h.highlight_doc("this and this and",  "\"this and this\"");
-			assertEquals(2 ,h.Weights[0]);
-			assertEquals(2 ,h.Weights[1]);
-			assertEquals(2 ,h.Weights[2]);
+			h.highlight_doc("this and this and",  "\"this and this\"", s);
+			assertEquals(2 ,s.Weights[0]);
+			assertEquals(2 ,s.Weights[1]);
+			assertEquals(2 ,s.Weights[2]);
 		}
 
 		public void testDupes2(){
 			//test that dupes are removed from a non-phrase
-			h.highlight_doc("this and this and",  "this and this");
-			assertEquals(1 ,h.Weights[0]);
-			assertEquals(0 ,h.Weights[1]);
-			assertEquals(1 ,h.Weights[2]);
+			h.highlight_doc("this and this and",  "this and this", s);
+			assertEquals(1 ,s.Weights[0]);
+			assertEquals(0 ,s.Weights[1]);
+			assertEquals(1 ,s.Weights[2]);
+		}
+
+
+		//a compiled query should give the same results on every doc
+		public void testCompiledQuery(){
+			CompiledQuery q = h.compile("toast");
+			assertEquals(st+"toast"+end+" and jam", 
+									 h.highlight_doc("toast and jam", q));
+			assertEquals("eggs "+st+"toaster"+end, 
+									 h.highlight_doc("eggs toaster", q));
+			h.highlight_doc(doc, q, s);
+			assertEquals("toast: ", 1, s.Weights[0]);
+			assertEquals("toaster: ", 1, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
+		}
+
+		//all terms are found in one pass, partials still credit the word
+		public void testMultiTerm(){
+			h.highlight_doc("the automobile and the autopilot had a toaster",
+											"auto toast pilot", s);
+			assertEquals("automobile: ", 1, s.Weights[1]);
+			assertEquals("autopilot: ", 2, s.Weights[4]);
+			assertEquals("had: ", 0, s.Weights[5]);
+			assertEquals("toaster: ", 1, s.Weights[7]);
+		}
+
+		//overlapping matches are all counted, same as Boyer-Moore
+		public void testOverlapping(){
+			final int[] count = new int[2];
+			AhoCorasick ac = new AhoCorasick(new String[]{"aa", "a"}, 128);
+			char[] hay = "aaa b".toCharArray();
+			ac.scan(hay, hay.length, new AhoCorasick.Hits(){
+				public void hit(int pattern, int start){ count[pattern]++; }
+			});
+			assertEquals(2, count[0]);
+			assertEquals(3, count[1]);
+		}
+
+		//batch results come back in order, same as one at a time
+		public void testHighlightAll(){
+			java.util.ArrayList<String> docs = new java.util.ArrayList<String>();
+			for(int i = 0; i < 50; i++)
+				docs.add(i%2==0 ? doc : under200);
+			java.util.List<String> out = h.highlightAll(docs, "toast");
+			assertEquals(50, out.size());
+			for(int i = 0; i < 50; i++)
+				assertEquals(h.highlight_doc(docs.get(i), "toast"), out.get(i));
+		}
+
+		//a prepared doc gives the same results for any query
+		public void testPreparedDocument(){
+			PreparedDocument d = h.prepare(doc);
+			assertEquals(h.highlight_doc(doc, "toast"), 
+									 h.highlight_doc(d, h.compile("toast")));
+			assertEquals(h.highlight_doc(doc, "\"toaster toast\""), 
+									 h.highlight_doc(d, h.compile("\"toaster toast\"")));
+			assertNull(h.prepare(""));
+		}
+
+		public void testDocumentCache(){
+			DocumentCache c = new DocumentCache(h, 2*h.prepare(doc).weight());
+			PreparedDocument d = c.get("a", 1, doc);
+			assertSame(d, c.get("a", 1, doc));
+			assertNotSame(d, c.get("a", 2, doc));
+			assertEquals(2, c.size());
+			//over the limit, "a" v1 is least recently used
+			c.get("b", 1, doc);
+			assertEquals(2, c.size());
+			assertNotSame(d, c.get("a", 1, doc));
+			//a suffix array built while cached is counted, and can evict
+			Highlighter sh = new Highlighter();
+			sh.setSuffixArrays(1);
+			long base = h.prepare(doc).weight(), sa = 8L*h.prepare(doc).haystackLen;
+			c = new DocumentCache(h, Math.max(2*base, base + sa + base/2));
+			c.get("a", 1, doc);
+			PreparedDocument b = c.get("b", 1, doc);
+			assertEquals(2, c.size());
+			sh.highlight_doc(b, h.compile("jam"));// "a" has to go
+			assertEquals(base + sa, b.weight());
+			assertEquals(1, c.size());
+			assertEquals(b.weight(), c.weight());
+			assertSame(b, c.get("b", 1, doc));
+			c.remove("b", 1);
+			assertEquals(0, c.weight());
+		}
+
+		//TESTS FOR TOKENIZER
+		public void testTokenizer(){
+			String in = "  Hello, World -- it's\tME!";
+			Tokenizer t = new Tokenizer(in, Tokenizer.KEEP_EMPTY);
+			assertEquals("hello world its me", t.toString());
+			assertEquals(4+1, t.words());
+			assertEquals("--", in.substring(t.origStart[2], t.origEnd[2]));
+			assertEquals("ME!", in.substring(t.origStart[4], t.origEnd[4]));
+			assertEquals("me", t.word(4));
+			assertEquals("", t.word(2));
+			assertEquals("hello world its me", new Tokenizer(in, 0).toString());
+			assertEquals("\"toast\" toaster", 
+									 new Tokenizer("\"Toast\",  toaster", 
+																 Tokenizer.KEEP_QUOTES).toString());
+		}
+
+		//punctuation-only words keep their place in the snippet
+		public void testPunctuatedPhrase(){
+			assertEquals(st+"Hello, world"+end+" -- and more", 
+									 h.highlight_doc("Hello, world -- and more", 
+																	 "\"hello world\"", s));
+			assertEquals(0, s.Weights[2]);
+			assertEquals("", h.highlight_doc(" \t ", "something"));
+		}
+
+		//match positions resolve to the enclosing word
+		public void testWordAt(){
+			h.highlight_doc("toast -- toaster ! toad", "toad", s);
+			//formatted: "toast toaster toad"
+			assertEquals(0, s.wordAt(0));
+			assertEquals(0, s.wordAt(4));
+			assertEquals(0, s.wordAt(5));
+			assertEquals(2, s.wordAt(6));
+			assertEquals(2, s.wordAt(13));
+			assertEquals(4, s.wordAt(14));
+			assertEquals(4, s.wordAt(17));
+			assertEquals(2, s.nextWord(0));
+			assertEquals(4, s.nextWord(2));
+		}
+
+		//a reused Scratch gives the same weights as a fresh one
+		public void testScratchReuse(){
+			StringBuilder big = new StringBuilder();
+			for(int i = 0; i < 100; i++)
+				big.append("toast toaster toad ");
+			h.highlight_doc(big.toString(), "toast", s);
+			assertEquals(200, s.hitCount[0]);
+			h.highlight_doc(doc, "toast", s);
+			assertEquals(2, s.hitCount[0]);
+			assertEquals("toast: ", 1, s.Weights[0]);
+			assertEquals("toaster: ", 1, s.Weights[1]);
+			assertEquals("toad: ", 0, s.Weights[2]);
+		}
+
+		//snippets can be streamed, with any tags
+		public void testAppendable() throws java.io.IOException {
+			h.setTags("<b>", "</b>");
+			StringBuilder sb = new StringBuilder("> ");
+			assertTrue(h.highlight_doc(h.prepare("this is  a\ntest"), 
+										h.compile("this is a longer test"), s, sb));
+			assertEquals("> <b>this</b> is a <b>test</b>", sb.toString());
+			assertFalse(h.highlight_doc(h.prepare(""), h.compile("test"), s, sb));
+		}
+
+		//spans point into the original text
+		public void testSpans(){
+			String d = "Hello, world -- and  more";
+			HighlightSpans sp = h.highlightSpans(h.prepare(d), 
+																					 h.compile("\"hello world\" more"), s);
+			assertTrue(sp.matched());
+			assertEquals(0, sp.start());
+			assertEquals(d.length(), sp.end());
+			assertEquals(2, sp.size());
+			assertEquals("Hello, world", d.substring(sp.start(0), sp.end(0)));
+			assertEquals("more", d.substring(sp.start(1), sp.end(1)));
+			assertFalse(h.highlightSpans(h.prepare(d), h.compile("x"), s).matched());
+		}
+
+		//no match returns the first SNIP_SIZE chars' worth of words
+		public void testNoMatchSnip(){
+			h.setSnip(20);
+			assertEquals("This is an example", h.highlight_doc(under200, "excelsior"));
+			assertEquals(st+"This is an example"+end, 
+									 h.highlight_doc(under200, under200));
+		}
+
+		//streaming gives the same snippet as the in-memory version
+		public void testStreaming() throws java.io.IOException {
+			StreamingHighlighter sh = new StreamingHighlighter(h);
+			StringBuilder big = new StringBuilder();
+			java.util.Random r = new java.util.Random(42);
+			String[] vocab = {"toast", "toaster", "toad", "jam,", "--", "The",
+												"and", "automobile", "auto-pilot", "\"quoted\""};
+			for(int i = 0; i < 5000; i++)
+				big.append(vocab[r.nextInt(vocab.length)]).append(i%7==0 ? "\n" : " ");
+			String[] queries = {"toast", "toad jam", "\"toaster toad\" auto",
+													"\"jam toast toad\"", "automobile the", "nothing", "",
+													"toad toad"};
+			for(String d : new String[]{doc, under200, big.toString(), "  ", "a -- b"})
+				for(String q : queries){
+					CompiledQuery cq = h.compile(q);
+					assertEquals(d + "/" + q, h.highlight_doc(d, cq), 
+											 sh.highlight(new java.io.StringReader(d), cq));
+				}
+			assertNull(sh.highlight(new java.io.StringReader(""), h.compile("x")));
+			assertEquals(h.highlight_doc(under200, "nice pretty"),
+									 sh.highlight(java.nio.ByteBuffer.wrap(under200.getBytes("UTF-8")),
+																h.compile("nice pretty")));
+		}
+
+		//top-k snippets don't overlap and come back in document order
+		public void testTopK(){
+			h.setSnip(20);
+			h.setSeparator(" | ");
+			String d = "toast is here. filler filler filler filler filler filler "
+				+ "filler filler jam and toast there. filler filler filler filler "
+				+ "filler filler filler filler toast toast toast!";
+			String[] out = h.highlight_doc(d, "toast", 3).split(" \\| ");
+			assertEquals(3, out.length);
+			assertEquals(st+"toast"+end+" is here.", out[0]);
+			assertTrue(out[1].contains(st+"toast"+end+" there."));
+			assertTrue(out[2].endsWith(st+"toast toast toast!"+end));
+			//the best one alone
+			assertTrue(h.highlight_doc(d, "toast", 1)
+								 .endsWith(st+"toast toast toast!"+end));
+			assertEquals(h.highlight_doc(d, "toast"), h.highlight_doc(d, "toast", 1));
+			//no match is still just the first snippet
+			assertEquals("toast is here.", h.highlight_doc(d, "nothing", 3));
+		}
+
+		//the k windows holding the most between them, none empty
+		public void testTopKCoverage(){
+			h.setSnip(20);
+			h.setSeparator(" | ");
+			String d = "x toast y y y y y y toast y y y toast toast y y y y y y y y";
+			String[] three = h.highlight_doc(d, "toast", 3).split(" \\| ");
+			assertEquals(3, three.length);
+			assertEquals("x "+st+"toast"+end+" y y y y y y", three[0]);
+			assertEquals(st+"toast"+end+" y y y", three[1]);
+			assertTrue(three[2].startsWith(st+"toast toast"+end));
+			String[] two = h.highlight_doc(d, "toast", 2).split(" \\| ");
+			assertEquals(2, two.length);
+			assertTrue(two[1].contains(st+"toast toast"+end));
+			//one hit, one fragment
+			String one = h.highlight_doc("y y y y y y y y y y toast y y y y y y y y y y y y y",
+																	 "toast", 3);
+			assertFalse(one.contains(" | "));
+			assertTrue(one.contains(st+"toast"+end));
+		}
+
+		//every phase gets reported, and the counters add up
+		public void testListener() throws Exception {
+			HighlightStats stats = new HighlightStats();
+			h.setListener(stats);
+			h.highlight_doc(doc, "toast");
+			h.highlight_doc(doc, "\"toad toast\"");// falls back to terms
+			long[] counts = stats.getCounts();
+			for(int i = 0; i < HighlightListener.PHASES; i++)
+				assertEquals(HighlightListener.PHASE_NAMES[i], 2, counts[i]);
+			assertEquals(2, stats.getSearches());
+			assertEquals(6, stats.getDocWords());
+			assertEquals(1, stats.getFallbacks());
+			//toast: 2 (toast, toaster), then toad: 1, toast: 2
+			assertEquals(5, stats.getMatches());
+			assertTrue(stats.getP99Nanos()[HighlightListener.SCAN] >= 
+								 stats.getP50Nanos()[HighlightListener.SCAN]);
+
+			javax.management.ObjectName on = 
+				stats.register("herrick.test:type=HighlightStats,name=test");
+			try{
+				assertEquals(2L, java.lang.management.ManagementFactory
+						.getPlatformMBeanServer().getAttribute(on, "Searches"));
+			}finally{
+				java.lang.management.ManagementFactory.getPlatformMBeanServer()
+					.unregisterMBean(on);
+			}
+			stats.reset();
+			h.setListener(null);
+			h.highlight_doc(doc, "toast");
+			assertEquals(0, stats.getSearches());
+		}
+
+		//every quoted phrase counts, in the same single scan
+		public void testMultiplePhrases() throws java.io.IOException {
+			String d = "toast toaster toad jam";
+			h.highlight_doc(d, "\"toad jam\" \"toast toaster\"", s);
+			assertEquals(2, s.Weights[0]);
+			assertEquals(2, s.Weights[1]);
+			assertEquals(2, s.Weights[2]);
+			assertEquals(2, s.Weights[3]);
+			//an unmatched phrase adds nothing, rest still counts
+			h.highlight_doc(d, "\"toad jam\" \"jam toast\" toaster", s);
+			assertEquals(0, s.Weights[0]);
+			assertEquals(1, s.Weights[1]);
+			assertEquals(2, s.Weights[2]);
+			assertEquals(2, s.Weights[3]);
+			//no phrase matches, so back to the terms
+			h.highlight_doc(d, "\"jam toast\" \"toad toast\"", s);
+			for(int i = 0; i < 4; i++)
+				assertEquals(1, s.Weights[i]);
+			//the same phrase twice only counts once
+			h.highlight_doc(d, "\"toad jam\" \"toad jam\"", s);
+			assertEquals(2, s.Weights[3]);
+			assertEquals(h.highlight_doc(d, "\"toad jam\" \"jam toast\" toaster"),
+									 new StreamingHighlighter(h).highlight(
+											 new java.io.StringReader(d),
+											 h.compile("\"toad jam\" \"jam toast\" toaster")));
+		}
+
+		//the index finds exactly what a scan would, partials included
+		public void testCorpusIndex(){
+			CorpusIndex idx = new CorpusIndex(h);
+			java.util.Random r = new java.util.Random(7);
+			String[] vocab = {"toast", "toaster", "toad", "jam,", "--", "The",
+												"and", "automobile", "auto-pilot", "aaaa", "caf\u00e9"};
+			String[] docs = new String[20];
+			for(int d = 0; d < docs.length; d++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 0; i < 30 + r.nextInt(300); i++)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				docs[d] = sb.toString();
+				idx.add("d" + d, docs[d]);
+			}
+			idx.add("eq", "toast and jam");
+			String[] queries = {"toast", "oast", "auto", "aa", "\"toaster toad\" jam",
+													"\"ast toa\"", "\"jam the and\" toad", "caf\u00e9",
+													"nothing", "", "toast and jam", "\"pilot automobile\""};
+			Scratch s2 = new Scratch();
+			for(String q : queries){
+				CompiledQuery cq = h.compile(q);
+				CorpusIndex.Expansion x = idx.expand(cq);
+				for(int d = 0; d < docs.length; d++){
+					String want = h.highlight_doc(docs[d], cq, s);
+					assertEquals(d + "/" + q, want, idx.highlight_doc("d" + d, x, s2));
+					if(s.Weights != null)
+						assertTrue(d + "/" + q, 
+											 java.util.Arrays.equals(s.Weights, s2.Weights));
+				}
+			}
+			assertEquals(st+"toast and jam"+end, idx.highlight_doc("eq", "toast and jam"));
+			assertNull(idx.highlight_doc("missing", "toast"));
+			//documents added after expanding are still found
+			CorpusIndex.Expansion x = idx.expand(h.compile("zebra"));
+			idx.add("late", "a zebra crossing");
+			assertEquals("a "+st+"zebra"+end+" crossing", 
+									 idx.highlight_doc("late", x, s2));
+			//short needles expand to most of a big dictionary
+			String[] wide = new String[2000];
+			for(int i = 0; i < wide.length; i++){
+				wide[i] = "t" + i + "x and toast " + (char)('a' + i%26) + "t" + 7*i;
+				idx.add("w" + i, wide[i]);
+			}
+			for(String q : new String[]{"t", "\"x and\"", "\"and toast\" 7", "9x"}){
+				CompiledQuery cq = h.compile(q);
+				CorpusIndex.Expansion xw = idx.expand(cq);
+				for(int i = 0; i < wide.length; i += 37)
+					assertEquals(i + "/" + q, h.highlight_doc(wide[i], cq, s),
+											 idx.highlight_doc("w" + i, xw, s2));
+			}
+		}
+
+		//UTF-8 bytes are searched as is, accents and all
+		public void testUtf8() throws Exception {
+			java.nio.charset.Charset utf8 = java.nio.charset.StandardCharsets.UTF_8;
+			byte[] b = "Le CAF\u00c9 est \u00e9norme, na\u00efve!".getBytes(utf8);
+			CompiledQuery q = h.compile("caf\u00e9 \u00c9NORME");
+			assertEquals("Le "+st+"CAF\u00c9"+end+" est "+st+"\u00e9norme,"+end
+									 +" na\u00efve!", h.highlight_doc(h.prepare(b), q));
+			//offsets are in bytes
+			HighlightSpans sp = h.highlightSpans(h.prepare(b), q, s);
+			assertEquals(3, sp.start(0));
+			assertEquals(8, sp.end(0));
+			//doc == query
+			assertEquals(st+"na\u00efve!"+end, h.highlight_doc(h.prepare(
+					"na\u00efve!".getBytes(utf8)), h.compile("NA\u00cfVE")));
+			//capitals outside Latin-1 fold the way Tokenizer folds them
+			String mir = "\u041c\u0438\u0440";// Cyrillic
+			assertEquals(st+mir+end+" \u0442\u0440\u0443\u0434", h.highlight_doc(
+					h.prepare((mir+" \u0442\u0440\u0443\u0434").getBytes(utf8)), h.compile(mir)));
+			assertEquals(st+mir+end, h.highlight_doc(h.prepare(mir.getBytes(utf8)),
+					h.compile(mir)));
+			String greek = "\u039a\u0391\u039b\u0397\u039c\u0395\u03a1\u0391";
+			assertEquals(st+greek+end, h.highlight_doc(h.prepare(greek.getBytes(utf8)),
+					h.compile("\u03ba\u03b1\u03bb\u03b7\u03bc\u03b5\u03c1\u03b1")));
+			//comes out the same either way (non-ASCII chars need the
+			//whole alphabet)
+			Highlighter wide = new Highlighter();
+			wide.setAlpha(0x10000);
+			String[] queries = {"toast", "\"toaster toad\" jam", "nothing", "",
+													"toast toaster toad", "\u0178ES", "\u0130stanbul",
+													"\u0141\u00f3d\u017a " + mir};
+			for(String d : new String[]{doc, under200, "a -- b", "  x  ",
+					"\u0178es, \u0130STANBUL! \u0141\u00d3D\u0179", mir + " \u0141\u00f3d\u017a"})
+				for(String qs : queries){
+					CompiledQuery cq = wide.compile(qs);
+					assertEquals(d + "/" + qs, wide.highlight_doc(d, cq),
+											 wide.highlight_doc(wide.prepare(d.getBytes(utf8)), cq));
+				}
+			assertNull(h.prepare(new byte[0]));
 		}
 
+		//single-needle scanners find exactly what the automaton does
+		public void testNeedleScanners(){
+			if(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+				assertNotNull(CompiledQuery.VECTOR);
+			java.util.Random r = new java.util.Random(3);
+			char[] alpha = {'a', 'b', ' ', 'c', '\u00e9'};
+			for(int round = 0; round < 200; round++){
+				char[] hay = new char[r.nextInt(300)];
+				for(int i = 0; i < hay.length; i++)
+					hay[i] = alpha[r.nextInt(alpha.length)];
+				StringBuilder n = new StringBuilder();
+				for(int i = 1 + r.nextInt(4); i > 0; i--)
+					n.append(alpha[r.nextInt(alpha.length)]);
+				String needle = n.toString();
+				String want = hits(new AhoCorasick(new String[]{needle}, 128), 
+													 null, hay);
+				assertEquals(needle, want, hits(null, new BoyerMoore(needle, 128), hay));
+				assertEquals(needle, want, 
+										 hits(null, MatcherCosts.DEFAULT.scanner(needle, 128), hay));
+				assertEquals(needle, want, hits(null, new ShortScanner(needle, 128), hay));
+				assertEquals(needle, want, hits(null, new Horspool(needle, 128), hay));
+			}
+		}
+
+		//whichever matchers the cost model picks, same snippets
+		public void testMatcherCosts(){
+			MatcherCosts c = MatcherCosts.DEFAULT;
+			assertTrue(c.plan(new String[]{"a"}, 128)[0] instanceof ShortScanner);
+			assertNull(c.plan("a b c d e f g h i j".split(" "), 128));
+			assertEquals(MatcherCosts.BOYER_MOORE, only(MatcherCosts.BOYER_MOORE).kind(2));
+
+			Highlighter[] hs = new Highlighter[MatcherCosts.KINDS + 1];
+			for(int k = 0; k < hs.length; k++){
+				hs[k] = new Highlighter();
+				hs[k].setMatcherCosts(only(k));// KINDS: automaton only
+			}
+			//the automaton is only built if the plan uses it
+			CompiledQuery sep = hs[MatcherCosts.HORSPOOL].compile("toast jam");
+			assertNull(sep.automaton);
+			assertNotNull(sep.automaton());
+			assertNotNull(hs[MatcherCosts.KINDS].compile("toast jam").automaton);
+			java.util.Random r = new java.util.Random(9);
+			String[] vocab = {"toast", "jam", "to", "the", "toad", "Jam,", "t", "\u00e9t\u00e9"};
+			String[] queries = {"t", "jam", "toast jam", "\"to the toad\" jam t", 
+													"oast toa", "jam toast toad t to", "\u00e9t\u00e9 jam"};
+			for(int round = 0; round < 20; round++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 0; i < 200; i++)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				for(String q : queries){
+					String want = hs[MatcherCosts.KINDS].highlight_doc(sb.toString(), q);
+					for(int k = 0; k < MatcherCosts.KINDS; k++)
+						assertEquals(q + " " + k, want, hs[k].highlight_doc(sb.toString(), q));
+				}
+			}
+		}
+
+		// costs where only scanners of 'kind' are any good, and the
+		//	  automaton never wins (or, for kind == KINDS, always does)
+		private MatcherCosts only(int kind){
+			double inf = Double.POSITIVE_INFINITY;
+			double[][] perChar = new double[MatcherCosts.KINDS][6];
+			for(int k = 0; k < perChar.length; k++)
+				java.util.Arrays.fill(perChar[k], k == kind ? 1 : inf);
+			double[] ac = new double[5];
+			java.util.Arrays.fill(ac, kind == MatcherCosts.KINDS ? 0 : inf);
+			return new MatcherCosts(perChar, new double[MatcherCosts.KINDS], ac);
+		}
+
+		private String hits(AhoCorasick ac, NeedleScanner ns, char[] hay){
+			final StringBuilder sb = new StringBuilder();
+			AhoCorasick.Hits out = new AhoCorasick.Hits(){
+				public void hit(int pattern, int start){
+					sb.append(start).append(' ');
+				}
+			};
+			if(ac != null) ac.scan(hay, hay.length, out);
+			else ns.scan(hay, 0, hay.length, 0, out);
+			return sb.toString();
+		}
+
+		//spellings of the same query share one cached snippet
+		public void testSnippetCache(){
+			SnippetCache c = new SnippetCache(h, 2);
+			String want = h.highlight_doc(doc, "toad toast");
+			assertEquals(want, c.highlight_doc("a", 1, doc, "toad toast"));
+			assertEquals(want, c.highlight_doc("a", 1, doc, "Toad, the TOAST toad"));
+			assertEquals(1, c.hits());
+			assertEquals(1, c.misses());
+			//exact order matters, so this is another entry
+			c.highlight_doc("a", 1, doc, "toast toad");
+			assertEquals(2, c.misses());
+			//new version misses, and pushes out the oldest
+			c.highlight_doc("a", 2, doc, "toad toast");
+			assertEquals(1, c.evictions());
+			assertEquals(2, c.size());
+			//doc==query depends on the spelling, so it's never reused
+			String d = "toast and jam";
+			assertEquals(st+d+end, c.highlight_doc("b", 1, d, "toast and jam"));
+			assertEquals(st+"toast"+end+" and "+st+"jam"+end, 
+									 c.highlight_doc("b", 1, d, "toast jam"));
+			assertEquals(st+d+end, c.highlight_doc("b", 1, d, "Toast and JAM!"));
+		}
+
+		//stopwords are a pluggable set, and can be skipped in documents
+		public void testStopWords() throws java.io.IOException {
+			StopWords sw = new StopWords("The", "and", "of,");
+			assertEquals(3, sw.size());
+			assertTrue(sw.contains("the"));
+			assertTrue(sw.contains("of"));
+			assertFalse(sw.contains("them"));
+			assertTrue(sw.contains("x and".toCharArray(), 2, 5));
+			//custom set applies to queries
+			h.setStopWords("toast");
+			h.highlight_doc(doc, "toast toad", s);
+			assertEquals(0, s.Weights[0]);
+			assertEquals(1, s.Weights[2]);
+
+			//skipping: searched text loses its stopwords, snippets don't
+			h = new Highlighter();
+			h.setSkipStopWords(true);
+			String d = "this and that and more";
+			assertEquals("this that more".length(), h.prepare(d).haystackLen);
+			assertEquals(st+"this and that"+end+" and more", 
+									 h.highlight_doc(d, "\"this and that\""));
+			assertEquals(st+"toast and jam"+end, h.highlight_doc("toast and jam", "toast jam"));
+			assertEquals(st+"toast"+end+" is "+st+"jam"+end, 
+									 h.highlight_doc("toast is jam", "jam toast"));
+			assertEquals(h.highlight_doc(d, "that"), h.highlight_doc(
+					h.prepare(d.getBytes("UTF-8")), h.compile("that")));
+
+			//streaming skips them the same way
+			StreamingHighlighter sh = new StreamingHighlighter(h);
+			java.util.Random r = new java.util.Random(11);
+			String[] vocab = {"toast", "the", "toad", "and", "--", "The", "jam,"};
+			for(int round = 0; round < 50; round++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 0; i < 100; i++)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				for(String q : new String[]{"toast jam", "\"toad the jam\"", "and"}){
+					CompiledQuery cq = h.compile(q);
+					assertEquals(q, h.highlight_doc(sb.toString(), cq), 
+											 sh.highlight(new java.io.StringReader(sb.toString()), cq));
+				}
+			}
+		}
+
+		public void testBatch() throws Exception {
+			BatchRunner b = new BatchRunner(h);
+			b.threads = 3;
+			StringBuilder in = new StringBuilder(), want = new StringBuilder();
+			for(int i = 0; i < 200; i++){
+				String doc = "toast number " + i + " with \"jam\"\tand\nmore";
+				in.append("{\"id\": " + i + ", \"doc\": " + BatchRunner.quote(doc) 
+									+ ", \"query\":\"jam\"}\n");
+				want.append("{\"id\":" + i + ",\"snippet\":" 
+										+ BatchRunner.quote(h.highlight_doc(doc, "jam")) + "}\n");
+			}
+			in.append("{\"doc\": \"broken\n");
+			want.append("{\"line\":201,\"error\":\"unexpected end of line\"}\n");
+			java.io.StringWriter out = new java.io.StringWriter();
+			assertEquals(201, b.run(new java.io.BufferedReader(
+					new java.io.StringReader(in.toString())), out));
+			assertEquals(want.toString(), out.toString());
+			//one Scratch per record in flight, not per record or thread
+			assertTrue(b.scratches.size() <= b.threads);
+			b.virtual = true;
+			b.scratches.clear();
+			out = new java.io.StringWriter();
+			b.run(new java.io.BufferedReader(new java.io.StringReader(in.toString())), out);
+			assertEquals(want.toString(), out.toString());
+			assertTrue(b.scratches.size() <= 4*b.threads + 2);
+			b.virtual = false;
+
+			//tsv, with and without ids
+			b.tsv = true;
+			out = new java.io.StringWriter();
+			b.run(new java.io.BufferedReader(new java.io.StringReader(
+					"jam\ttoast and jam\nx7\ttoast\ttoast\\tjam\nx8\ttoast\ttoast\tjam\nbad\n")), 
+					out);
+			//a bad record keeps its id, if it has one
+			assertEquals("toast and "+st+"jam"+end+"\nx7\t"+st+"toast"+end+" jam\nx8\t\n\n", 
+									 out.toString());
+
+			//a failing out doesn't leave the reader blocked on the window
+			StringBuilder many = new StringBuilder();
+			for(int i = 0; i < 1000; i++) many.append("jam\ttoast and jam\n");
+			try{
+				b.run(new java.io.BufferedReader(new java.io.StringReader(many.toString())), 
+						new java.io.Writer(){
+							public void write(char[] c, int off, int len) throws java.io.IOException {
+								try{
+									Thread.sleep(200);// till the window's full
+								}catch(InterruptedException e){}
+								throw new java.io.IOException("disk full");
+							}
+							public void flush(){}
+							public void close(){}
+						});
+				fail();
+			}catch(java.io.IOException e){
+				assertEquals("disk full", e.getMessage());
+			}
+			for(Thread t : Thread.getAllStackTraces().keySet())
+				if(t.getName().equals("batch-reader")){
+					t.join(5000);
+					assertFalse(t.isAlive());
+				}
+
+			//an empty doc isn't flagged truncated by the one before it
+			Highlighter bh = new Highlighter();
+			bh.setScanBudget(10);
+			b = new BatchRunner(bh);
+			b.threads = 1;
+			out = new java.io.StringWriter();
+			b.run(new java.io.BufferedReader(new java.io.StringReader(
+					"{\"doc\": \"toast and jam and toast and jam\", \"query\": \"jam\"}\n"
+					+ "{\"doc\": \"\", \"query\": \"jam\"}\n")), out);
+			String[] lines = out.toString().split("\n");
+			assertTrue(lines[0].endsWith(",\"truncated\":true}"));
+			assertEquals("{\"snippet\":\"\"}", lines[1]);
+		}
+
+		public void testEarlyStop() throws java.io.IOException {
+			StringBuilder sb = new StringBuilder("toast jam");
+			for(int i = 0; i < 500; i++) sb.append(" filler");
+			sb.append(" toast jam toast jam toast");
+			String doc = sb.toString();
+			Scratch s = new Scratch();
+			assertTrue(h.highlight_doc(doc, "toast jam", s).endsWith("toast jam toast jam"+end));
+
+			//best of the first piece holds the exact text: stop there
+			Highlighter e = new Highlighter();
+			e.setEarlyStop(true);
+			assertTrue(e.highlight_doc(doc, "toast jam", s).startsWith(st+"toast jam"+end));
+			assertFalse(s.truncated());
+			//...but only the best kind the query has
+			assertTrue(e.highlight_doc(doc, "\"jam toast\"", s).endsWith("jam toast jam toast"+end));
+
+			//budgets
+			Highlighter b = new Highlighter();
+			b.setScanBudget(100);
+			assertEquals("toast and "+st+"jam"+end, b.highlight_doc("toast and jam", "jam", s));
+			assertFalse(s.truncated());
+			assertTrue(b.highlight_doc(doc, "jam toast", s).startsWith(st+"toast jam"+end));
+			assertTrue(s.truncated());
+			assertTrue(b.highlightSpans(b.prepare(doc), b.compile("filler jam"), s).truncated());
+			b.setScanBudget(0);
+			b.setTimeBudget(1);
+			b.highlight_doc(doc, "filler jam", s);
+			assertTrue(s.truncated());
+
+			//scanning a piece at a time finds the same matches as all at once
+			b.setTimeBudget(Long.MAX_VALUE);
+			java.util.Random r = new java.util.Random(5);
+			String[] vocab = {"toast", "jam", "to", "the", "toad", "Jam,", "tj", "\u00e9t\u00e9"};
+			for(int round = 0; round < 30; round++){
+				sb = new StringBuilder();
+				for(int i = 0; i < 1500; i++)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				for(String q : new String[]{"toast jam", "oast", "\"to the toad\" jam", "t\u00e9"}){
+					assertEquals(q, h.highlight_doc(sb.toString(), q), 
+											 b.highlight_doc(sb.toString(), q, s));
+					assertFalse(s.truncated());
+					byte[] utf8 = sb.toString().getBytes("UTF-8");
+					assertEquals(q, h.highlight_doc(h.prepare(utf8), h.compile(q)), 
+											 b.highlight_doc(b.prepare(utf8), b.compile(q)));
+				}
+			}
+		}
+
+		public void testDocumentStore() throws java.io.IOException {
+			java.nio.file.Path f = java.nio.file.Files.createTempFile("store", ".hlds");
+			try{
+				String[] docs = {"toast and jam", null, "", "   ", "Cr\u00e8me br\u00fbl\u00e9e, toast!",
+												 "jam jam toast the toad"};
+				java.util.Random r = new java.util.Random(4);
+				java.util.ArrayList<String> all = new java.util.ArrayList<String>();
+				java.util.Collections.addAll(all, docs);
+				String[] vocab = {"toast", "jam", "the", "toad", "--", "Jam,", "cr\u00e8me"};
+				for(int d = 0; d < 30; d++){
+					StringBuilder sb = new StringBuilder();
+					for(int i = r.nextInt(400); i > 0; i--)
+						sb.append(vocab[r.nextInt(vocab.length)]).append(i % 7 == 0 ? "\n" : " ");
+					all.add(sb.toString());
+				}
+				DocumentStore.Writer w = DocumentStore.create(f, h);
+				for(String d : all) w.add(d);
+				w.close();
+
+				DocumentStore store = DocumentStore.open(f, h);
+				assertEquals(all.size(), store.size());
+				Scratch s = new Scratch();
+				for(String q : new String[]{"toast jam", "\"the toad\"", "CR\u00c8ME", "zebra"}){
+					CompiledQuery cq = h.compile(q);
+					for(int n = 0; n < all.size(); n++){
+						String d = all.get(n);
+						assertEquals(d == null || d.isEmpty() ? null : d, store.text(n));
+						PreparedDocument p = d == null ? null : h.prepare(d.getBytes("UTF-8"));
+						assertEquals(q + " " + n, h.highlight_doc(p, cq), store.highlight_doc(n, cq, s));
+						assertEquals(String.valueOf(h.highlightSpans(p, cq, new Scratch())), 
+												 String.valueOf(store.highlightSpans(n, cq, s)));
+					}
+				}
+				assertEquals(st+"toast"+end+" and "+st+"jam"+end, store.highlight_doc(0, "jam toast"));
+				assertNull(store.highlight_doc(1, "jam"));
+				store.close();
+
+				//formatted by a different setting, won't open
+				Highlighter skip = new Highlighter();
+				skip.setSkipStopWords(true);
+				try{
+					DocumentStore.open(f, skip);
+					fail();
+				}catch(IllegalArgumentException e){}
+
+				//a bad count or a cut-off file is caught before mapping
+				try(java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(f,
+						java.nio.file.StandardOpenOption.WRITE)){
+					ch.write(java.nio.ByteBuffer.wrap(new byte[]{0x7f, 0, 0, 0}), ch.size() - 16);
+				}
+				try{
+					DocumentStore.open(f, h);
+					fail();
+				}catch(java.io.IOException e){}
+				try(java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(f,
+						java.nio.file.StandardOpenOption.WRITE)){
+					ch.truncate(ch.size() / 2);
+				}
+				try{
+					DocumentStore.open(f, h);
+					fail();
+				}catch(java.io.IOException e){}
+
+				//an index bigger than one chunk
+				w = DocumentStore.create(f, h);
+				int many = DocumentStore.INDEX_CHUNK + 10;
+				for(int n = 0; n < many; n++) w.add("toast " + n);
+				w.close();
+				store = DocumentStore.open(f, h);
+				assertEquals(many, store.size());
+				assertEquals("toast " + (many-1), store.text(many-1));
+				store.close();
+			}finally{
+				java.nio.file.Files.delete(f);
+			}
+		}
+
+		public void testSuffixArray() throws Exception {
+			java.util.Random r = new java.util.Random(6);
+			for(int round = 0; round < 100; round++){
+				char[] text = new char[r.nextInt(60)];
+				for(int i = 0; i < text.length; i++)
+					text[i] = "ab a\u00e9".charAt(r.nextInt(5));
+				String t = new String(text);
+				SuffixArray sa = new SuffixArray(text, text.length);
+				for(int i = 1; i < text.length; i++){
+					String a = t.substring(sa.sa[i-1]), b = t.substring(sa.sa[i]);
+					assertTrue(a.compareTo(b) < 0);
+					int l = 0;
+					while(l < a.length() && l < b.length() && a.charAt(l) == b.charAt(l)) l++;
+					assertEquals(l, sa.lcp[i]);
+				}
+				for(String needle : new String[]{"a", "ab", "b a", "aa", "\u00e9", "zz"})
+					assertEquals(t + "/" + needle, CorpusIndex.occurrences(t, needle), sa.count(needle));
+			}
+
+			//same snippets as scanning
+			Highlighter sh = new Highlighter();
+			sh.setSuffixArrays(1);
+			String[] vocab = {"toast", "jam", "to", "the", "toad", "Jam,", "automobile", "\u00e9t\u00e9"};
+			String[] queries = {"t", "auto jam", "toast jam", "\"to the toad\" jam t", 
+													"oast toa", "\u00e9t\u00e9 jam", "zebra"};
+			Scratch s = new Scratch();
+			for(int round = 0; round < 20; round++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 0; i < 300; i++)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				PreparedDocument d = h.prepare(sb.toString());
+				for(String q : queries){
+					CompiledQuery cq = h.compile(q);
+					assertEquals(q, h.highlight_doc(d, cq), sh.highlight_doc(d, cq, s));
+					StringBuilder top = new StringBuilder();
+					sh.highlight_doc(d, cq, s, 2, top);
+					assertEquals(q, h.highlight_doc(sb.toString(), q, 2), top.toString());
+				}
+				assertSame(d.suffixArray(), d.suffixArray());
+			}
+
+			//documents prepared for one call never get one
+			final PreparedDocument[] last = new PreparedDocument[1];
+			Highlighter once = new Highlighter(){
+				protected PreparedDocument prepareOnce(String doc){
+					return last[0] = super.prepareOnce(doc);
+				}
+			};
+			once.setSuffixArrays(1);
+			String big = under200 + " " + under200;
+			long base = h.prepare(big).weight();
+			once.highlight_doc(big, "example");
+			assertEquals(base, last[0].weight());
+			once.highlight_doc(big, "example", 2);
+			assertEquals(base, last[0].weight());
+			once.highlightSizes(big, "example", 50, 100);
+			assertEquals(base, last[0].weight());
+			once.highlightAll(java.util.Arrays.asList(big), "example");
+			assertEquals(base, last[0].weight());
+			//...while one the caller keeps does
+			PreparedDocument kept = once.prepare(big);
+			once.highlight_doc(kept, once.compile("example"));
+			assertTrue(kept.weight() > base);
+		}
+
+		//one search, each size's snippet same as setSnip(size) gives
+		public void testSizes(){
+			int[] sizes = {100, 7, 200, 400, 30};
+			Highlighter[] hs = new Highlighter[sizes.length];
+			for(int j = 0; j < sizes.length; j++){
+				hs[j] = new Highlighter();
+				hs[j].setSnip(sizes[j]);
+			}
+			java.util.Random r = new java.util.Random(8);
+			String[] vocab = {"toast", "jam", "the", "toad", "--", "Jam,", "automobiles", 
+												"antidisestablishmentarianism"};
+			Scratch s = new Scratch();
+			for(int round = 0; round < 40; round++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = r.nextInt(150); i > 0; i--)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				String doc = sb.length() == 0 ? " " : sb.toString();
+				for(String q : new String[]{"toast jam", "\"the toad\"", "auto", "zebra", doc}){
+					String[] got = h.highlightSizes(h.prepare(doc), h.compile(q), s, sizes);
+					for(int j = 0; j < sizes.length; j++)
+						assertEquals(q + " " + sizes[j], hs[j].highlight_doc(doc, q), got[j]);
+				}
+			}
+			assertNull(h.highlightSizes(null, "jam", 10, 20));
+		}
+
+		public void testPercolator(){
+			Percolator p = new Percolator(h);
+			String[] queries = {"toast jam", "\"the toad\" jam", "auto", "zebra", "the", 
+													"JAM toast", "oast", "\u00e9t\u00e9", "t"};
+			for(int i = 0; i < queries.length; i++)
+				p.add("q" + i, queries[i]);
+			p.add("q3", "toad");// replaces zebra
+			assertEquals(queries.length, p.size());
+			queries[3] = "toad";
+
+			java.util.Random r = new java.util.Random(9);
+			String[] vocab = {"toast", "jam", "the", "toad", "Jam,", "automobile", "\u00e9t\u00e9", "zebra"};
+			Scratch s = new Scratch();
+			for(int round = 0; round < 40; round++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 1 + r.nextInt(100); i > 0; i--)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				String doc = round == 0 ? "the" : sb.toString();
+				for(PreparedDocument d : new PreparedDocument[]{h.prepare(doc),
+						h.prepare(doc.getBytes(java.nio.charset.StandardCharsets.UTF_8))}){
+					java.util.Map<String, String> got = p.percolate(d, s);
+					for(int i = 0; i < queries.length; i++){
+						CompiledQuery q = h.compile(queries[i]);
+						String want = h.highlight_doc(d, q, s);
+						boolean matched = s.mode != Scratch.NO_MATCH;
+						assertEquals(doc + "/" + queries[i], matched ? want : null, got.get("q" + i));
+					}
+				}
+			}
+			assertEquals("{q4=" + st + "the" + end + ", q8=" + st + "the" + end + "}", 
+									 p.percolate("the").toString());
+			assertTrue(p.percolate((String)null).isEmpty());
+		}
+
+		public void testPercolatorShards(){
+			java.util.Random r = new java.util.Random(13);
+			String[] vocab = new String[400];
+			for(int i = 0; i < vocab.length; i++){
+				StringBuilder w = new StringBuilder();
+				for(int j = 3 + r.nextInt(5); j > 0; j--)
+					w.append((char)('a' + r.nextInt(26)));
+				vocab[i] = w.toString();
+			}
+			long budget = 1 << 14;
+			Percolator p = new Percolator(h, budget);
+			String[] queries = new String[3000];
+			for(int i = 0; i < queries.length; i++){
+				queries[i] = vocab[r.nextInt(vocab.length)];
+				for(int j = r.nextInt(3); j > 0; j--)
+					queries[i] += " " + vocab[r.nextInt(vocab.length)];
+				p.add("q" + i, queries[i]);
+			}
+			Percolator.Snapshot sn = p.snapshot();
+			assertTrue(sn.shards.length > 1);
+			for(Percolator.Shard sh : sn.shards)
+				assertTrue(sh.to - sh.from == 1 || sh.automaton.cells() <= budget);
+			assertTrue(p.weight() >= 4L*sn.shards[0].automaton.cells());
+
+			Scratch s = new Scratch();
+			for(int round = 0; round < 6; round++){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 1 + r.nextInt(60); i > 0; i--)
+					sb.append(vocab[r.nextInt(vocab.length)]).append(' ');
+				String doc = round == 0 ? queries[2999] : sb.toString();
+				for(PreparedDocument d : new PreparedDocument[]{h.prepare(doc),
+						h.prepare(doc.getBytes(java.nio.charset.StandardCharsets.UTF_8))}){
+					java.util.Map<String, String> got = p.percolate(d, s);
+					for(int i = 0; i < queries.length; i++){
+						String want = h.highlight_doc(d, h.compile(queries[i]), s);
+						boolean matched = s.mode != Scratch.NO_MATCH;
+						assertEquals(doc + "/" + queries[i], matched ? want : null, got.get("q" + i));
+					}
+				}
+			}
+
+			// more queries only rebuild the last shard, replacing one
+			//	  only its own
+			p.add("more", vocab[0]);
+			Percolator.Snapshot more = p.snapshot();
+			for(int k = 0; k < sn.shards.length-1; k++)
+				assertSame(sn.shards[k], more.shards[k]);
+			p.add("q0", vocab[1]);
+			Percolator.Snapshot replaced = p.snapshot();
+			assertNotSame(more.shards[0], replaced.shards[0]);
+			for(int k = 1; k < more.shards.length; k++)
+				assertSame(more.shards[k], replaced.shards[k]);
+			assertEquals(st + vocab[1] + end, p.percolate(vocab[1]).get("q0"));
+		}
 
 	}
@@ -0,0 +1,136 @@
+package herrick.test;
+
+import java.util.*;
+
+// Hand-written, single pass replacement for the old replaceAll()
+// chain: lowercases, strips ASCII punctuation, collapses whitespace
+// and (optionally) drops common words, all while walking the input
+// once.  No regexes, no intermediate Strings.  Common words are
+// looked up in a StopWords set, right out of the output buffer.
+//
+// The result is the normalized text (tokens joined by single spaces)
+// plus, for every token, where it sits in that text and where it
+// came from in the original input.
+//
+// A 'token' is one whitespace-separated chunk of the input.  Chunks
+// that are nothing but punctuation normalize to nothing; they are
+// dropped unless KEEP_EMPTY is given, in which case they are kept as
+// zero-length tokens (start == end) that add nothing to the text.
+// Documents need this so every original word keeps its index.
+//
+public class Tokenizer {
+
+	// flags
+	public static final int KEEP_QUOTES  = 1; // leave '"' alone, for format_Q
+	public static final int DROP_COMMONS = 2; // drop stopwords
+	public static final int KEEP_EMPTY   = 4; // keep all-punctuation tokens
+
+	// normalized text, valid up to length
+	protected final char[] text;
+	protected int length;
+
+	// number of tokens, and their bounds in text / the original
+	protected int words;
+	protected int[] start, end;
+	protected int[] origStart, origEnd;
+
+	public Tokenizer(String input, int flags){
+		this(input, flags, StopWords.DEFAULT);
+	}
+
+	public Tokenizer(String input, int flags, String[] commons){
+		this(input, flags, new StopWords(commons));
+	}
+
+	// With KEEP_EMPTY and DROP_COMMONS, stopwords are kept as empty
+	//	  tokens, same as all-punctuation ones: they're gone from
+	//	  the text but every original word keeps its index.
+	//
+	public Tokenizer(String input, int flags, StopWords commons){
+		int n = input.length();
+		text = new char[n];
+		int cap = 16;
+		start = new int[cap];
+		end = new int[cap];
+		origStart = new int[cap];
+		origEnd = new int[cap];
+
+		boolean quotes = (flags & KEEP_QUOTES) != 0;
+		boolean drop = (flags & DROP_COMMONS) != 0;
+		boolean keepEmpty = (flags & KEEP_EMPTY) != 0;
+
+		int i = 0;
+		while(i < n){
+			// skip whitespace between tokens
+			while(i < n && isSpace(input.charAt(i))) i++;
+			if(i == n) break;
+
+			// separator goes in first, taken back out if the token's empty
+			int mark = length;
+			if(length > 0) text[length++] = ' ';
+			int tStart = length;
+			int oStart = i;
+			for(; i < n; i++){
+				char c = input.charAt(i);
+				if(isSpace(c)) break;
+				if(isPunct(c) && !(quotes && c == '"')) continue;
+				text[length++] = Character.toLowerCase(c);
+			}
+
+			if(length == tStart || (drop && commons.contains(text, tStart, length))){
+				length = mark;
+				if(!keepEmpty) continue;
+				tStart = length;
+			}
+
+			if(words == start.length) grow();
+			start[words] = tStart;
+			end[words] = length;
+			origStart[words] = oStart;
+			origEnd[words] = i;
+			words++;
+		}
+	}
+
+	public int words(){
+		return words;
+	}
+
+	// the normalized text as a String (what format() used to return)
+	public String toString(){
+		return new String(text, 0, length);
+	}
+
+	// the i'th normalized token
+	public String word(int i){
+		return new String(text, start[i], end[i] - start[i]);
+	}
+
+	// true if the chars in text[from, to) equal s
+	public boolean regionEquals(int from, int to, String s){
+		if(to - from != s.length()) return false;
+		for(int i = from; i < to; i++)
+			if(text[i] != s.charAt(i - from)) return false;
+		return true;
+	}
+
+	// \s in the old regexes
+	public static boolean isSpace(char c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r'
+			|| c == '\f' || c == 0x0B;
+	}
+
+	// \p{Punct} in the old regexes
+	public static boolean isPunct(char c){
+		return (c >= '!' && c <= '/') || (c >= ':' && c <= '@')
+			|| (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+	}
+
+	private void grow(){
+		int cap = start.length*2;
+		start = Arrays.copyOf(start, cap);
+		end = Arrays.copyOf(end, cap);
+		origStart = Arrays.copyOf(origStart, cap);
+		origEnd = Arrays.copyOf(origEnd, cap);
+	}
+}
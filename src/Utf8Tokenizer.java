@@ -0,0 +1,150 @@
+package herrick.test;
+
+import java.nio.*;
+import java.util.*;
+
+// Tokenizer for UTF-8 bytes, working on the bytes themselves: nothing
+// is decoded to chars.  Same output as Tokenizer with KEEP_EMPTY, in
+// bytes instead of chars: the formatted text as UTF-8, and each
+// token's bounds in it and in the original (as byte offsets).
+//
+// This works because in UTF-8 every byte of a multi-byte character is
+// >= 0x80, so the ASCII whitespace and punctuation Tokenizer looks for
+// can never turn up inside one.  Case folding is the one Tokenizer
+// does, Character.toLowerCase() of every char: ASCII A-Z in place, and
+// a two or three byte character (the BMP, so every char a String has
+// that isn't half a surrogate pair) decoded, lowercased and encoded
+// again, which may change its length.  Four byte characters and bytes
+// that aren't well-formed UTF-8 are copied as they are.  So the
+// needles, which Tokenizer lowercased, are just their UTF-8.
+//
+public class Utf8Tokenizer {
+
+	// formatted text, valid up to length
+	protected byte[] text;
+	protected int length;
+
+	// number of tokens, and their bounds in text / the original
+	protected int words;
+	protected int[] start, end;
+	protected int[] origStart, origEnd;
+
+	public Utf8Tokenizer(ByteBuffer in){
+		this(in, null);
+	}
+
+	// Reads in from its position to its limit; offsets are relative
+	//	  to its position.  in itself is left untouched.  Words in
+	//	  drop (if not null) become empty tokens, like Tokenizer's
+	//	  KEEP_EMPTY | DROP_COMMONS.
+	//
+	public Utf8Tokenizer(ByteBuffer in, StopWords drop){
+		int base = in.position();
+		int n = in.remaining();
+		text = new byte[n];
+		int cap = 16;
+		start = new int[cap];
+		end = new int[cap];
+		origStart = new int[cap];
+		origEnd = new int[cap];
+
+		int i = 0;
+		while(i < n){
+			// skip whitespace between tokens
+			while(i < n && isSpace(in.get(base+i))) i++;
+			if(i == n) break;
+
+			// separator goes in first, taken back out if the token's empty
+			int mark = length;
+			if(length > 0) text[length++] = ' ';
+			int tStart = length;
+			int oStart = i;
+			while(i < n){
+				byte b = in.get(base+i);
+				if(isSpace(b)) break;
+				if(b >= 0){
+					if(!isPunct(b))
+						text[length++] = b >= 'A' && b <= 'Z' ? (byte)(b + 32) : b;
+					i++;
+				}
+				else
+					i += fold(in, base+i, n-i);
+			}
+
+			// all punctuation, or a stopword: empty token
+			if(length == tStart 
+					|| (drop != null && drop.contains(text, tStart, length)))
+				length = tStart = mark;
+
+			if(words == start.length) grow();
+			start[words] = tStart;
+			end[words] = length;
+			origStart[words] = oStart;
+			origEnd[words] = i;
+			words++;
+		}
+	}
+
+	public int words(){
+		return words;
+	}
+
+	// Same bytes a document would format to, for a String that has
+	//	  already been through Tokenizer (i.e. a query needle), which
+	//	  lowercased it already
+	//
+	public static byte[] encode(String formatted){
+		return formatted.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+	}
+
+	// Appends the lowercase of the non-ASCII character at in[at] (at
+	//	  most left bytes of it) to text; returns how many bytes it was
+	//
+	private int fold(ByteBuffer in, int at, int left){
+		int b = in.get(at) & 0xff;
+		int len = (b & 0xe0) == 0xc0 ? 2 : (b & 0xf0) == 0xe0 ? 3 : 1;
+		int c = len == 2 ? b & 0x1f : b & 0x0f;
+		for(int k = 1; k < len; k++){
+			int cont = k < left ? in.get(at+k) & 0xff : 0;
+			if((cont & 0xc0) != 0x80) len = 1;// not well-formed
+			c = c << 6 | (cont & 0x3f);
+		}
+		if(len == 2 && c < 0x80 || len == 3 && c < 0x800) len = 1;// overlong
+		if(length + 3 > text.length)
+			text = Arrays.copyOf(text, Math.max(2*text.length, length + 3));
+		if(len == 1){
+			text[length++] = (byte)b;
+			return 1;
+		}
+		c = Character.toLowerCase((char)c);
+		if(c < 0x80)
+			text[length++] = (byte)c;
+		else if(c < 0x800){
+			text[length++] = (byte)(0xc0 | c >> 6);
+			text[length++] = (byte)(0x80 | c & 0x3f);
+		}
+		else{
+			text[length++] = (byte)(0xe0 | c >> 12);
+			text[length++] = (byte)(0x80 | c >> 6 & 0x3f);
+			text[length++] = (byte)(0x80 | c & 0x3f);
+		}
+		return len;
+	}
+
+	// same sets as Tokenizer.isSpace()/isPunct(), for bytes
+	public static boolean isSpace(byte b){
+		return b >= 0 && Tokenizer.isSpace((char)b);
+	}
+
+	public static boolean isPunct(byte b){
+		return b >= 0 && Tokenizer.isPunct((char)b);
+	}
+
+	private void grow(){
+		int cap = start.length*2;
+		start = Arrays.copyOf(start, cap);
+		end = Arrays.copyOf(end, cap);
+		origStart = Arrays.copyOf(origStart, cap);
+		origEnd = Arrays.copyOf(origEnd, cap);
+	}
+}
@@ -0,0 +1,67 @@
+package herrick.test;
+
+import jdk.incubator.vector.*;
+
+// NeedleScanner on the Vector API: compares the needle's first and
+// last chars against a whole vector of haystack positions at once,
+// and only checks the chars in between where both matched.  For the
+// short needles most queries are made of, that beats Boyer-Moore,
+// which can barely skip anything.
+//
+// Lives outside src/ because it needs jdk.incubator.vector both to
+// compile and to run; build.xml only compiles it on JDK 16+, and
+// CompiledQuery only loads it when the module is present (run with
+// --add-modules jdk.incubator.vector).  Even then it's only used for
+// the needles MatcherCosts.plan() finds it cheapest for.
+//
+public class VectorScanner implements NeedleScanner {
+
+	protected static final VectorSpecies<Short> SPECIES = 
+		ShortVector.SPECIES_PREFERRED;
+
+	protected final char[] needleA;
+	protected final int needleLen;
+
+	// needles with chars >= alphaSize never match, as in AhoCorasick
+	public VectorScanner(String needle, int alphaSize){
+		needleA = needle.toCharArray();
+		boolean in = needleA.length > 0;
+		for(char c : needleA) in &= c < alphaSize;
+		needleLen = in ? needleA.length : 0;
+	}
+
+	public void scan(char[] haystackA, int from, int to, int pattern,
+			AhoCorasick.Hits out){
+		if(needleLen == 0) return;
+		int last = needleLen-1;
+		int lanes = SPECIES.length();
+		ShortVector first = ShortVector.broadcast(SPECIES, (short)needleA[0]);
+		ShortVector tail = ShortVector.broadcast(SPECIES, (short)needleA[last]);
+
+		// candidates i where both ends match, a vector of them at a time
+		int end = to - needleLen;// last possible start
+		int i = from;
+		for(; i + last + lanes <= to; i += lanes){
+			VectorMask<Short> m = 
+				ShortVector.fromCharArray(SPECIES, haystackA, i).eq(first)
+				.and(ShortVector.fromCharArray(SPECIES, haystackA, i + last).eq(tail));
+			long bits = m.toLong();
+			while(bits != 0){
+				int k = i + Long.numberOfTrailingZeros(bits);
+				if(middle(haystackA, k)) out.hit(pattern, k);
+				bits &= bits - 1;
+			}
+		}
+		for(; i <= end; i++)// what's left, one at a time
+			if(haystackA[i] == needleA[0] && haystackA[i+last] == needleA[last]
+					&& middle(haystackA, i))
+				out.hit(pattern, i);
+	}
+
+	// do the chars between the first and last match at i?
+	private boolean middle(char[] haystackA, int i){
+		for(int j = 1; j < needleLen-1; j++)
+			if(haystackA[i+j] != needleA[j]) return false;
+		return true;
+	}
+}